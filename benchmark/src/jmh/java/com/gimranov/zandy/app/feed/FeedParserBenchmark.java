@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.feed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xml.sax.SAXException;
+
+/**
+ * Parse throughput of FeedParser, per entry. The fixture is a recorded page
+ * of four entries (book, article, attachment, note); it is repeated with
+ * fresh keys into one feed of ENTRIES entries, a few megabytes, so that the
+ * numbers reflect long feeds rather than parser setup. Run with the gc
+ * profiler, gc.alloc.rate.norm is the allocation per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FeedParserBenchmark {
+    private static final int ENTRIES = 4000;
+
+    private byte[] feed;
+
+    @Setup
+    public void loadFixture() throws IOException {
+        String page = read("/items.atom");
+        int first = page.indexOf("<entry>");
+        int last = page.lastIndexOf("</entry>") + "</entry>".length();
+        String head = page.substring(0, first);
+        String entries = page.substring(first, last);
+        String tail = page.substring(last);
+        int perPage = count(entries, "<entry>");
+
+        StringBuilder sb = new StringBuilder(head);
+        for (int copy = 0; copy < ENTRIES / perPage; copy++) {
+            // Each copy gets keys of its own
+            sb.append(entries.replace("<zapi:key>", "<zapi:key>" + String.format("%04d", copy)));
+        }
+        sb.append(tail);
+        feed = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void parseFeed(final Blackhole blackhole) throws IOException, SAXException {
+        new FeedParser(new FeedSink() {
+            @Override
+            public void link(String rel, String href) {
+                blackhole.consume(href);
+            }
+
+            @Override
+            public void entry(FeedEntry entry) {
+                blackhole.consume(entry);
+            }
+        }).parse(new ByteArrayInputStream(feed), false);
+    }
+
+    private static String read(String resource) throws IOException {
+        InputStream in = FeedParserBenchmark.class.getResourceAsStream(resource);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int count(String s, String part) {
+        int count = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,132 @@
+package com.gimranov.zandy.app;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.gimranov.zandy.app.data.Database;
+import com.gimranov.zandy.app.task.APIException;
+import com.gimranov.zandy.app.task.APIRequest;
+import com.gimranov.zandy.app.task.PooledTransport;
+import com.gimranov.zandy.app.task.SyncSession;
+import com.gimranov.zandy.app.task.Transport;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertSame;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Checks what APIRequest.issue(..) sends, against a stand-in Transport
+ * instead of the Zotero server
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TransportTest {
+
+    private Database mDb;
+    private ServerCredentials mCred;
+    private StubTransport mTransport;
+
+    private static class StubTransport implements Transport {
+        final ArrayList<HttpUriRequest> requests = new ArrayList<>();
+        final ArrayList<HttpContext> contexts = new ArrayList<>();
+        int status = 200;
+        String body = "<feed xmlns=\"http://www.w3.org/2005/Atom\"></feed>";
+
+        @Override
+        public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+            requests.add(request);
+            contexts.add(context);
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+            response.setEntity(new StringEntity(body, "UTF-8"));
+            return response;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        preferences.edit()
+                .putString("user_id", "5770")
+                .putString("user_key", "TESTKEY")
+                .commit();
+
+        mDb = new Database(getApplicationContext());
+        mCred = new ServerCredentials(getApplicationContext());
+        mTransport = new StubTransport();
+        APIRequest.setTransport(mTransport);
+    }
+
+    @After
+    public void tearDown() {
+        APIRequest.setTransport(null);
+        PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit().clear().commit();
+    }
+
+    @Test
+    public void sendsOneRequestWithApiVersion() throws APIException {
+        APIRequest.fetchCollections(mCred).issue(mDb, mCred);
+
+        assertEquals(1, mTransport.requests.size());
+        HttpUriRequest sent = mTransport.requests.get(0);
+        assertEquals("GET", sent.getMethod());
+        assertEquals("1", sent.getFirstHeader("Zotero-API-Version").getValue());
+        assertEquals("/users/5770/collections", sent.getURI().getPath());
+    }
+
+    @Test
+    public void queuesContinuationOnSession() throws APIException {
+        mTransport.body = "<feed xmlns=\"http://www.w3.org/2005/Atom\">"
+                + "<link rel=\"next\" href=\"https://api.zotero.org/users/5770/collections?start=50\"/>"
+                + "</feed>";
+        SyncSession session = new SyncSession();
+        APIRequest.fetchCollections(mCred).issue(mDb, mCred, session);
+
+        APIRequest[] queued = session.drain();
+        assertEquals(1, queued.length);
+        assertEquals("https://api.zotero.org/users/5770/collections?start=50", queued[0].query);
+        assertEquals(0, session.drain().length);
+    }
+
+    @Test
+    public void countsTransferOnEachSession() throws APIException {
+        SyncSession first = new SyncSession();
+        SyncSession second = new SyncSession();
+        APIRequest.fetchCollections(mCred).issue(mDb, mCred, first);
+        APIRequest.fetchCollections(mCred).issue(mDb, mCred, second);
+
+        assertEquals(2, mTransport.contexts.size());
+        assertSame(first.getTransferStats(),
+                mTransport.contexts.get(0).getAttribute(PooledTransport.TRANSFER_STATS));
+        assertSame(second.getTransferStats(),
+                mTransport.contexts.get(1).getAttribute(PooledTransport.TRANSFER_STATS));
+    }
+
+    @Test
+    public void failsOnServerError() {
+        mTransport.status = 500;
+        mTransport.body = "Server error";
+        try {
+            APIRequest.fetchCollections(mCred).issue(mDb, mCred);
+            fail();
+        } catch (APIException e) {
+            assertEquals(1, mTransport.requests.size());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.gimranov.zandy.app.data;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Times the in-memory part of a collection sync: adding every member the
+ * server lists, adding them all again, and finding the members that the
+ * server no longer lists. Each size doubles the last, so with hashed
+ * membership the time per item should stay roughly flat. Results go to the
+ * log under the ItemCollectionBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ItemCollectionBenchmark {
+    private static final String TAG = ItemCollectionBenchmark.class.getSimpleName();
+
+    private static final int[] SIZES = {1000, 2000, 4000, 8000, 16000};
+
+    @Test
+    public void collectionSyncScalesLinearly() {
+        // Warm up the JIT before timing anything
+        sync(SIZES[0]);
+
+        double smallest = 0;
+        double largest = 0;
+        for (int size : SIZES) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            sync(size);
+            double perItem = (SystemClock.elapsedRealtimeNanos() - start) / (double) size;
+            Log.i(TAG, size + " items: " + Math.round(perItem) + " ns/item");
+
+            if (size == SIZES[0]) smallest = perItem;
+            largest = perItem;
+        }
+
+        // A quadratic scan would be 16 times slower per item at the largest size;
+        // allow generous slack for GC and timer noise
+        assertTrue("Per-item cost grew from " + smallest + " to " + largest + " ns",
+                largest < smallest * 4);
+    }
+
+    private static void sync(int size) {
+        ItemCollection collection = new ItemCollection();
+        ArrayList<String> keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Item item = new Item();
+            item.setKey(String.format("K%07d", i));
+            // Saved items from the server don't touch the database when added
+            item.dbId = Integer.toString(i);
+            collection.add(item, true, null);
+            // Leave every tenth item out of the listing
+            if (i % 10 != 0) keys.add(item.getKey());
+        }
+
+        for (int i = 0; i < size; i++) {
+            Item again = new Item();
+            again.setKey(String.format("K%07d", i));
+            again.dbId = Integer.toString(i);
+            collection.add(again, true, null);
+        }
+
+        assertEquals(size, collection.size());
+        assertEquals(size - keys.size(), collection.notInKeys(keys).size());
+    }
+}
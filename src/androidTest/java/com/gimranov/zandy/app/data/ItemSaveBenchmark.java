@@ -0,0 +1,171 @@
+package com.gimranov.zandy.app.data;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+
+/**
+ * Compares ingest throughput of Item.save against the load / insert / load
+ * sequence it used to run, on a synthetic library. Each pass saves every item
+ * twice, once as a new item and once as an update, like a first sync followed
+ * by a full refresh. Results go to the log under the ItemSaveBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ItemSaveBenchmark {
+    private static final String TAG = ItemSaveBenchmark.class.getSimpleName();
+
+    private static final int ITEMS = 2000;
+
+    private Database mDb;
+
+    @Before
+    public void setUp() {
+        mDb = new Database(getApplicationContext());
+        mDb.resetAllData();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.resetAllData();
+    }
+
+    @Test
+    public void compareSavePaths() throws JSONException {
+        long legacy = run(true);
+        assertEquals(ITEMS, count());
+        mDb.resetAllData();
+
+        long current = run(false);
+        assertEquals(ITEMS, count());
+
+        Log.i(TAG, "Legacy save: " + rate(legacy) + " items/s (" + legacy + " ms)");
+        Log.i(TAG, "Item.save:   " + rate(current) + " items/s (" + current + " ms)");
+
+        Item item = Item.load(key(ITEMS - 1), mDb);
+        assertNotNull(item);
+        assertEquals("Synthetic item " + (ITEMS - 1), item.getTitle());
+    }
+
+    private long run(boolean legacy) throws JSONException {
+        long start = SystemClock.elapsedRealtime();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < ITEMS; i++) {
+                Item item = synthetic(i);
+                if (legacy) legacySave(item);
+                else item.save(mDb);
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * The old Item.save, adapted to the current schema, plus the index
+     * maintenance it would need to stay comparable with the current one
+     */
+    private void legacySave(Item item) {
+        // There was no object cache either
+        Item.cache.invalidate(item.getKey());
+        mDb.beginTransaction();
+        try {
+            Item existing = Item.load(item.getKey(), mDb);
+            if (existing == null) {
+                String[] args = {item.getTitle(), item.getKey(), item.getType(), item.getYear(),
+                        item.getCreatorSummary(), item.getEtag(), Integer.toString(item.dirty), item.getTimestamp(),
+                        item.getChildren()};
+                Cursor cur = mDb.rawQuery("insert into items (item_title, item_key, item_type," +
+                        " item_year, item_creator, etag, dirty, timestamp, item_children)" +
+                        " values (?, ?, ?, ?, ?, ?, ?, ?, ?)", args);
+                if (cur != null) cur.close();
+                item.dbId = Item.load(item.getKey(), mDb).dbId;
+            } else {
+                item.dbId = existing.dbId;
+                String[] args = {item.getTitle(), item.getType(), item.getYear(),
+                        item.getCreatorSummary(), item.getEtag(), Integer.toString(item.dirty), item.getTimestamp(),
+                        item.getKey(), item.getChildren(), item.dbId};
+                Cursor cur = mDb.rawQuery("update items set item_title=?, item_type=?, item_year=?," +
+                        " item_creator=?, etag=?, dirty=?, timestamp=?, item_key=?," +
+                        " item_children=? where _id=?", args);
+                if (cur != null) cur.close();
+            }
+            String[] content = {item.dbId, item.getContent().toString()};
+            Cursor cur = mDb.rawQuery("insert or replace into itemcontent (_id, item_content)" +
+                    " values (?, ?)", content);
+            if (cur != null) cur.close();
+            JSONObject parsed = item.getContent();
+            ItemSearchIndex.index(item, parsed, mDb);
+            ItemFields.index(item, parsed, mDb);
+            ItemTags.index(item, parsed, mDb);
+            ItemCreators.index(item, parsed, mDb);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private static Item synthetic(int i) throws JSONException {
+        JSONObject content = new JSONObject();
+        content.put("itemType", "journalArticle");
+        content.put("title", "Synthetic item " + i);
+        content.put("publicationTitle", "Journal " + (i % 50));
+        content.put("date", Integer.toString(1950 + i % 70));
+        content.put("abstractNote", "An abstract long enough to look like a real one, for item " + i);
+
+        JSONArray creators = new JSONArray();
+        for (int c = 0; c < 3; c++) {
+            JSONObject creator = new JSONObject();
+            creator.put("creatorType", "author");
+            creator.put("firstName", "First" + ((i + c) % 200));
+            creator.put("lastName", "Last" + ((i * 7 + c) % 500));
+            creators.put(creator);
+        }
+        content.put("creators", creators);
+
+        JSONArray tags = new JSONArray();
+        for (int t = 0; t < 4; t++) {
+            JSONObject tag = new JSONObject();
+            tag.put("tag", "tag" + ((i + t * 13) % 100));
+            tags.put(tag);
+        }
+        content.put("tags", tags);
+
+        Item item = new Item();
+        item.setKey(key(i));
+        item.setType("journalArticle");
+        item.setTitle("Synthetic item " + i);
+        item.setYear(Integer.toString(1950 + i % 70));
+        item.setCreatorSummary("Last" + (i * 7 % 500));
+        item.setContent(content);
+        return item;
+    }
+
+    private static String key(int i) {
+        return String.format("BENCH%03d", i);
+    }
+
+    private int count() {
+        Cursor cur = mDb.rawQuery("select count(*) from items", new String[]{});
+        int count = cur == null ? 0 : cur.getInt(0);
+        if (cur != null) cur.close();
+        return count;
+    }
+
+    private static long rate(long millis) {
+        return 2L * ITEMS * 1000 / Math.max(millis, 1);
+    }
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import android.database.Cursor;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.gimranov.zandy.app.Query;
+import com.gimranov.zandy.app.task.APIRequest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+
+/**
+ * Checks the result sets and order of the library queries against a small
+ * library, saved with Item.save so that the indexes are filled the way a
+ * sync fills them:
+ * <pre>
+ * key    title           year  first creator  tags         fields
+ * WHALE  Whale songs     1990  Melville       ocean music  abstract with "whale" twice, publicationTitle Nature
+ * SHORT  Whale           2000  Adams          music
+ * MOBY   Moby-Dick       1851  Zeta, Adams                 abstract with "whale" once, DOI
+ * TIDES  Ocean currents  1975  (none)         ocean        publicationTitle Nature
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LibraryQueryTest {
+
+    private Database mDb;
+
+    @Before
+    public void setUp() throws JSONException {
+        mDb = new Database(getApplicationContext());
+        mDb.resetAllData();
+
+        save("WHALE", "Whale songs", "journalArticle", "1990",
+                creators("Melville", "Herman"), tags("ocean", "music"),
+                "abstractNote", "A whale and another whale",
+                "publicationTitle", "Nature");
+        save("SHORT", "Whale", "book", "2000",
+                creators("Adams", "Douglas"), tags("music"));
+        save("MOBY", "Moby-Dick", "book", "1851",
+                creators("Zeta", "Zed", "Adams", "Douglas"), tags(),
+                "abstractNote", "The whale",
+                "DOI", "10.1000/moby");
+        save("TIDES", "Ocean currents", "report", "1975",
+                creators(), tags("ocean"),
+                "publicationTitle", "Nature");
+    }
+
+    @After
+    public void tearDown() {
+        mDb.resetAllData();
+    }
+
+    @Test
+    public void matchExpressionMakesEveryWordARequiredPrefix() {
+        assertEquals("moby* dick* whale*", ItemSearchIndex.matchExpression("Moby-Dick, WHALE!"));
+        assertNull(ItemSearchIndex.matchExpression(" ,; "));
+        assertNull(ItemSearchIndex.matchExpression(null));
+    }
+
+    @Test
+    public void searchRanksByNumberOfHits() {
+        // Three hits, then one hit each in the usual year order
+        assertEquals(Arrays.asList("WHALE", "MOBY", "SHORT"),
+                keys(DatabaseAccess.INSTANCE.items(mDb, "whale", null)));
+    }
+
+    @Test
+    public void searchMatchesPrefixesOfAllWords() {
+        assertEquals(Arrays.asList("WHALE", "MOBY", "SHORT"),
+                keys(DatabaseAccess.INSTANCE.items(mDb, "wha", null)));
+        assertEquals(Arrays.asList("MOBY"),
+                keys(DatabaseAccess.INSTANCE.items(mDb, "moby whale", null)));
+        assertEquals(Arrays.asList("WHALE", "SHORT"),
+                keys(DatabaseAccess.INSTANCE.items(mDb, "music", null)));
+        assertEquals(Arrays.asList("WHALE"),
+                keys(DatabaseAccess.INSTANCE.items(mDb, "melville", null)));
+        assertEquals(0, keys(DatabaseAccess.INSTANCE.items(mDb, "kraken", null)).size());
+    }
+
+    @Test
+    public void searchWithoutWordsListsEverything() {
+        assertEquals(4, keys(DatabaseAccess.INSTANCE.items(mDb, " - ", null)).size());
+    }
+
+    @Test
+    public void queryFindsContentFields() {
+        Query query = new Query();
+        query.set("publicationTitle", "Nature");
+        query.sortBy("item_year");
+        assertEquals(Arrays.asList("TIDES", "WHALE"), keys(query.query(mDb)));
+
+        query = new Query();
+        query.set("DOI", "10.1000/moby");
+        assertEquals(Arrays.asList("MOBY"), keys(query.query(mDb)));
+
+        query = new Query();
+        query.set("publicationTitle", "Science");
+        assertEquals(0, keys(query.query(mDb)).size());
+    }
+
+    @Test
+    public void queryCombinesFieldsAndColumns() {
+        Query query = new Query();
+        query.set("publicationTitle", "Nature");
+        query.set("item_type", "journalArticle");
+        assertEquals(Arrays.asList("WHALE"), keys(query.query(mDb)));
+    }
+
+    @Test
+    public void tagsListItemCounts() {
+        Cursor cur = DatabaseAccess.INSTANCE.tags(mDb);
+        ArrayList<String> tags = new ArrayList<>();
+        do {
+            tags.add(cur.getString(1) + " " + cur.getInt(2));
+        } while (cur.moveToNext());
+        cur.close();
+        assertEquals(Arrays.asList("music 2", "ocean 2"), tags);
+    }
+
+    @Test
+    public void itemsForTagInSortOrder() {
+        assertEquals(Arrays.asList("TIDES", "WHALE"),
+                keys(DatabaseAccess.INSTANCE.itemsForTag(mDb, "ocean", null)));
+        assertEquals(Arrays.asList("SHORT", "WHALE"),
+                keys(DatabaseAccess.INSTANCE.itemsForTag(mDb, "music", "item_title COLLATE NOCASE")));
+        assertEquals(0, keys(DatabaseAccess.INSTANCE.itemsForTag(mDb, "desert", null)).size());
+    }
+
+    @Test
+    public void queryFindsTags() {
+        Query query = new Query();
+        query.set("tag", "ocean");
+        query.set("publicationTitle", "Nature");
+        query.sortBy("item_year");
+        assertEquals(Arrays.asList("TIDES", "WHALE"), keys(query.query(mDb)));
+
+        query = new Query();
+        query.set("tag", "music");
+        query.set("item_type", "book");
+        assertEquals(Arrays.asList("SHORT"), keys(query.query(mDb)));
+    }
+
+    @Test
+    public void creatorsListItemCounts() {
+        Cursor cur = DatabaseAccess.INSTANCE.creators(mDb);
+        ArrayList<String> creators = new ArrayList<>();
+        String adams = null;
+        do {
+            creators.add(cur.getString(3) + " " + cur.getInt(4));
+            if ("Adams".equals(cur.getString(3))) adams = cur.getString(0);
+        } while (cur.moveToNext());
+        cur.close();
+        assertEquals(Arrays.asList("Adams 2", "Melville 1", "Zeta 1"), creators);
+
+        assertEquals(Arrays.asList("MOBY", "SHORT"),
+                keys(DatabaseAccess.INSTANCE.itemsForCreator(mDb, adams, null)));
+    }
+
+    @Test
+    public void sortsByFirstCreatorOnly() {
+        // Items without creators come first; MOBY's second creator doesn't count
+        String byCreator = DatabaseAccess.FIRST_CREATOR + " COLLATE NOCASE, item_year";
+
+        Query query = new Query();
+        query.sortBy(byCreator);
+        assertEquals(Arrays.asList("TIDES", "SHORT", "WHALE", "MOBY"), keys(query.query(mDb)));
+
+        assertEquals(Arrays.asList("SHORT", "WHALE"),
+                keys(DatabaseAccess.INSTANCE.itemsForTag(mDb, "music", byCreator)));
+
+        // Ranking still comes before the sort
+        assertEquals(Arrays.asList("WHALE", "SHORT", "MOBY"),
+                keys(DatabaseAccess.INSTANCE.items(mDb, "whale", byCreator)));
+    }
+
+    /**
+     * Saves an item with the given content; fields are name, value pairs
+     */
+    private void save(String key, String title, String type, String year,
+                      JSONArray creators, JSONArray tags, String... fields) throws JSONException {
+        JSONObject content = new JSONObject();
+        content.put("itemType", type);
+        content.put("creators", creators);
+        content.put("tags", tags);
+        for (int i = 0; i < fields.length; i += 2) {
+            content.put(fields[i], fields[i + 1]);
+        }
+
+        Item item = new Item();
+        item.setKey(key);
+        item.setType(type);
+        item.setYear(year);
+        item.setContent(content);
+        item.setTitle(title);
+        item.dirty = APIRequest.API_CLEAN;
+        item.save(mDb);
+    }
+
+    /**
+     * @param names Last and first name of each author, in order
+     */
+    private static JSONArray creators(String... names) throws JSONException {
+        JSONArray creators = new JSONArray();
+        for (int i = 0; i < names.length; i += 2) {
+            JSONObject creator = new JSONObject();
+            creator.put("creatorType", "author");
+            creator.put("lastName", names[i]);
+            creator.put("firstName", names[i + 1]);
+            creators.put(creator);
+        }
+        return creators;
+    }
+
+    private static JSONArray tags(String... names) throws JSONException {
+        JSONArray tags = new JSONArray();
+        for (String name : names) {
+            JSONObject tag = new JSONObject();
+            tag.put("tag", name);
+            tags.put(tag);
+        }
+        return tags;
+    }
+
+    /**
+     * @return The item keys of the rows, in order; closes the cursor
+     */
+    private static List<String> keys(Cursor cur) {
+        ArrayList<String> keys = new ArrayList<>();
+        if (cur == null) return keys;
+        do {
+            keys.add(cur.getString(cur.getColumnIndex("item_key")));
+        } while (cur.moveToNext());
+        cur.close();
+        return keys;
+    }
+}
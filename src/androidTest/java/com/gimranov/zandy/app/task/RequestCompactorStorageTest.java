@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.gimranov.zandy.app.data.Database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static androidx.test.core.app.ApplicationProvider.getApplicationContext;
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertSame;
+
+/**
+ * Checks that RequestCompactor keeps the stored queue in step with what it
+ * sends; the rules themselves are covered by RequestCompactorTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class RequestCompactorStorageTest {
+    private static final String BASE = "https://api.zotero.org/users/5770";
+
+    private Database mDb;
+
+    @Before
+    public void setUp() {
+        mDb = new Database(getApplicationContext());
+        mDb.resetAllData();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.resetAllData();
+    }
+
+    @Test
+    public void droppedRequestsAreDiscarded() {
+        APIRequest added = membership("POST", "/collections/QRST9876/items", "ABCD2345 ",
+                APIRequest.ITEM_MEMBERSHIP_ADD);
+        APIRequest removed = membership("DELETE", "/collections/QRST9876/items/ABCD2345", null,
+                APIRequest.ITEM_MEMBERSHIP_REMOVE);
+        APIRequest edit = new APIRequest(BASE + "/items/EFGH6789", "PUT", null);
+        edit.type = APIRequest.ITEM_UPDATE;
+        store(added, removed, edit);
+
+        APIRequest[] kept = RequestCompactor.compact(new APIRequest[]{added, removed, edit}, mDb);
+
+        assertEquals(1, kept.length);
+        assertSame(edit, kept[0]);
+        ArrayList<APIRequest> stored = APIRequest.queue(mDb);
+        assertEquals(1, stored.size());
+        assertEquals(edit.query, stored.get(0).query);
+    }
+
+    @Test
+    public void mergedAdditionIsStoredWithItsBody() {
+        APIRequest first = membership("POST", "/collections/QRST9876/items", "ABCD2345 ",
+                APIRequest.ITEM_MEMBERSHIP_ADD);
+        APIRequest second = membership("POST", "/collections/QRST9876/items", "EFGH6789 ",
+                APIRequest.ITEM_MEMBERSHIP_ADD);
+        store(first, second);
+
+        APIRequest[] kept = RequestCompactor.compact(new APIRequest[]{first, second}, mDb);
+
+        assertEquals(1, kept.length);
+        ArrayList<APIRequest> stored = APIRequest.queue(mDb);
+        assertEquals(1, stored.size());
+        assertEquals("ABCD2345 EFGH6789 ", stored.get(0).body);
+    }
+
+    private static APIRequest membership(String method, String path, String body, int type) {
+        APIRequest r = new APIRequest(BASE + path, method, null);
+        r.body = body;
+        r.type = type;
+        return r;
+    }
+
+    private void store(APIRequest... requests) {
+        for (APIRequest r : requests) {
+            r.status = APIRequest.REQ_NEW;
+            r.save(mDb);
+        }
+    }
+}
@@ -44,6 +44,7 @@ import com.gimranov.zandy.app.data.Database;
 import com.gimranov.zandy.app.data.DatabaseAccess;
 import com.gimranov.zandy.app.data.Item;
 import com.gimranov.zandy.app.data.ItemAdapter;
+import com.gimranov.zandy.app.data.ItemListCursor;
 import com.gimranov.zandy.app.data.ItemCollection;
 import com.gimranov.zandy.app.task.APIEvent;
 import com.gimranov.zandy.app.task.APIRequest;
@@ -79,7 +80,7 @@ public class ItemActivity extends ListActivity {
      */
     static final String[] SORTS = {
             "item_year, item_title COLLATE NOCASE",
-            "item_creator COLLATE NOCASE, item_year",
+            DatabaseAccess.FIRST_CREATOR + " COLLATE NOCASE, item_year",
             "item_title COLLATE NOCASE, item_year",
             "timestamp ASC, item_title COLLATE NOCASE"
     };
@@ -218,8 +219,7 @@ public class ItemActivity extends ListActivity {
             req = APIRequest.fetchItems(coll, false,
                     new ServerCredentials(this));
         } else {
-            req = APIRequest.fetchItems(false,
-                    new ServerCredentials(this));
+            req = APIRequest.fetchVersions(new ServerCredentials(this));
         }
 
         prepareAdapter();
@@ -252,17 +252,15 @@ public class ItemActivity extends ListActivity {
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 // If we have a click on an item, do something...
                 ItemAdapter adapter = (ItemAdapter) parent.getAdapter();
-                Cursor cur = adapter.getCursor();
+                ItemListCursor cur = ItemListCursor.of(adapter.getCursor());
                 // Place the cursor at the selected item
                 if (cur.moveToPosition(position)) {
-                    // and load an activity for the item
-                    Item item = Item.load(cur);
-
-                    Log.d(TAG, "Loading item data with key: " + item.getKey());
+                    // and load an activity for the item; it loads the full item itself
+                    Log.d(TAG, "Loading item data with key: " + cur.getKey());
                     // We create and issue a specified intent with the necessary data
                     Intent i = new Intent(getBaseContext(), ItemDataActivity.class);
-                    i.putExtra("com.gimranov.zandy.app.itemKey", item.getKey());
-                    i.putExtra("com.gimranov.zandy.app.itemDbId", item.dbId);
+                    i.putExtra("com.gimranov.zandy.app.itemKey", cur.getKey());
+                    i.putExtra("com.gimranov.zandy.app.itemDbId", cur.getDbId());
                     startActivity(i);
                 } else {
                     // failed to move cursor-- show a toast
@@ -318,9 +316,7 @@ public class ItemActivity extends ListActivity {
             this.setTitle(getResources().getString(R.string.search_results, query));
         } else if (intent.getStringExtra("com.gimranov.zandy.app.tag") != null) {
             String tag = intent.getStringExtra("com.gimranov.zandy.app.tag");
-            Query q = new Query();
-            q.set("tag", tag);
-            cursor = getCursor(q);
+            cursor = DatabaseAccess.INSTANCE.itemsForTag(db, tag, sortBy);
             this.setTitle(getResources().getString(R.string.tag_viewing_items, tag));
         } else {
             collectionKey = intent.getStringExtra("com.gimranov.zandy.app.collectionKey");
@@ -491,18 +487,17 @@ public class ItemActivity extends ListActivity {
                 // Get credentials
                 ServerCredentials cred = new ServerCredentials(getBaseContext());
 
-                // Make this a collection-specific sync, preceding by de-dirtying
-                Item.queue(db);
+                // Make this a collection-specific sync, preceded by sending local changes
                 ArrayList<APIRequest> list = new ArrayList<APIRequest>();
                 APIRequest[] templ = {};
-                for (Item i : Item.queue) {
-                    Log.d(TAG, "Adding dirty item to sync: " + i.getTitle());
-                    list.add(cred.prep(APIRequest.update(i)));
+                for (APIRequest r : APIRequest.outbox(db)) {
+                    Log.d(TAG, "Adding local change to sync: " + r.query);
+                    list.add(cred.prep(r));
                 }
 
                 if (collectionKey == null) {
                     Log.d(TAG, "Adding sync request for all items");
-                    APIRequest req = APIRequest.fetchItems(false, cred);
+                    APIRequest req = APIRequest.fetchVersions(cred);
                     req.setHandler(mEvent);
                     list.add(req);
                 } else {
@@ -11,6 +11,7 @@ import android.widget.TextView
 import com.gimranov.zandy.app.data.Database
 import com.gimranov.zandy.app.data.DatabaseAccess
 import com.gimranov.zandy.app.data.Item
+import com.gimranov.zandy.app.data.ItemListCursor
 import com.gimranov.zandy.app.databinding.ItemCardBinding
 import kotlinx.android.synthetic.main.item_card.view.*
 
@@ -28,15 +29,16 @@ class ItemAdapter(val database: Database,
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): ItemViewHolder {
         val layoutInflater = LayoutInflater.from(parent.context)
         val cardBinding = ItemCardBinding.inflate(layoutInflater, parent, false)
-        return ItemViewHolder(cardBinding, onItemNavigate)
+        return ItemViewHolder(cardBinding, database, onItemNavigate)
     }
 
     override fun onBindViewHolder(holder: ItemViewHolder, position: Int) {
-        if (cursor?.moveToPosition(position) != true) {
+        val rows = cursor ?: return
+        if (!rows.moveToPosition(position)) {
             return
         }
 
-        holder.bind(Item.load(cursor))
+        holder.bind(rows)
     }
 
     override fun onViewRecycled(holder: ItemViewHolder) {
@@ -47,12 +49,21 @@ class ItemAdapter(val database: Database,
         return cursor?.count ?: 0
     }
 
+    /**
+     * Binds list rows, which don't include the item content. The full item is
+     * only loaded when the card is expanded or one of its buttons is used.
+     */
     class ItemViewHolder(cardBinding: ItemCardBinding,
+                         private val database: Database,
                          private val onItemNavigate: (Item, ItemAction) -> Unit) : RecyclerView.ViewHolder(cardBinding.root) {
 
         private val binding = cardBinding
         private var expanded = false
 
+        private var key: String? = null
+        private var dbId: String? = null
+        private var item: Item? = null
+
         private fun toggle() {
             if (expanded) {
                 hide()
@@ -69,25 +80,49 @@ class ItemAdapter(val database: Database,
 
         private fun show() {
             expanded = true
+            if (binding.cardExpandedContent.childCount == 0) {
+                loadItem()?.let { fillContent(it) }
+            }
             binding.cardExpandedContent.visibility = View.VISIBLE
             binding.cardButtonBar.visibility = View.VISIBLE
         }
 
-        fun bind(item: Item) {
-            binding.item = item
+        private fun loadItem(): Item? {
+            if (item == null) {
+                item = Item.load(key, database) ?: dbId?.let { Item.loadDbId(it, database) }
+            }
+            return item
+        }
+
+        fun bind(row: ItemListCursor) {
+            // A holder can be bound again without being recycled first, so
+            // drop the previous row's content and start collapsed
+            unbind()
+
+            key = row.key
+            dbId = row.dbId
+            item = null
+
+            binding.title = row.title
+            binding.creatorSummary = row.creatorSummary
+            binding.year = row.year
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                binding.itemTypeIcon = binding.root.context.getDrawable(Item.resourceForType(item.type))
+                binding.itemTypeIcon = binding.root.context.getDrawable(Item.resourceForType(row.type))
             } else {
                 @Suppress("DEPRECATION")
-                binding.itemTypeIcon = binding.root.context.resources.getDrawable(Item.resourceForType(item.type))
+                binding.itemTypeIcon = binding.root.context.resources.getDrawable(Item.resourceForType(row.type))
             }
 
             binding.cardHeader.setOnClickListener { toggle() }
             binding.cardButtonBar.card_button_bar_edit
-                    .setOnClickListener { onItemNavigate(item, ItemAction.EDIT) }
+                    .setOnClickListener { loadItem()?.let { onItemNavigate(it, ItemAction.EDIT) } }
             binding.cardButtonBar.card_button_bar_organize
-                    .setOnClickListener { onItemNavigate(item, ItemAction.ORGANIZE) }
+                    .setOnClickListener { loadItem()?.let { onItemNavigate(it, ItemAction.ORGANIZE) } }
+
+            binding.executePendingBindings()
+        }
 
+        private fun fillContent(item: Item) {
             val keys = item.content.keys().asSequence().sortedBy { Item.sortValueForLabel(it) }.toList()
 
             keys.forEach {
@@ -114,8 +149,6 @@ class ItemAdapter(val database: Database,
 
                 binding.cardExpandedContent.addView(row)
             }
-
-            binding.executePendingBindings()
         }
 
         fun unbind() {
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.gimranov.zandy.app.data.Attachment;
+import com.gimranov.zandy.app.data.Database;
+import com.gimranov.zandy.app.data.Item;
+import com.gimranov.zandy.app.task.APIRequest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Reads item responses in the API's JSON format (format=json, API version 3)
+ * with a streaming JsonReader, as the alternative to XMLResponseParser.
+ * <p>
+ * The response is an array of objects like
+ * {"key": "ABCD2345", "library": {"type": "user", "id": 5770},
+ * "links": {"enclosure": {"href": "..."}},
+ * "meta": {"creatorSummary": "...", "parsedDate": "2011-05-01", "numChildren": 2},
+ * "data": {"itemType": "book", "title": "...", ...}}
+ * Each object is saved as soon as it has been read, and "data" is built
+ * straight into the item's content, so the response is never held as text
+ * or parsed twice.
+ */
+public class JsonResponseParser {
+    private static final String TAG = JsonResponseParser.class.getSimpleName();
+
+    /**
+     * Fields of "data" that version 1 content JSON doesn't have; writes of the
+     * content would be rejected with them. The version is kept separately.
+     */
+    private static final String[] SERVER_FIELDS = {"key", "version", "dateAdded",
+            "dateModified", "collections", "relations", "parentItem"};
+
+    /**
+     * Where the title is, for item types without a title field
+     */
+    private static final String[] TITLE_FIELDS = {"title", "caseName", "nameOfAct", "subject"};
+
+    private final APIRequest request;
+
+    public JsonResponseParser(APIRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Saves the items and attachments of the response, in one transaction. If
+     * the response can't be read, none of it is kept.
+     */
+    public void parse(InputStream in, Database db) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int entries = 0;
+        db.beginTransaction();
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readObject(reader, db);
+                entries++;
+            }
+            reader.endArray();
+            db.setTransactionSuccessful();
+        } catch (IllegalStateException | JSONException e) {
+            throw new IOException("Unexpected JSON in response to " + request.query, e);
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "Saved " + entries + " objects");
+    }
+
+    private void readObject(JsonReader reader, Database db) throws IOException, JSONException {
+        String key = null;
+        String library = "users/";
+        String enclosure = null;
+        String creatorSummary = "";
+        String parsedDate = "";
+        String numChildren = "0";
+        JSONObject data = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "key":
+                    key = reader.nextString();
+                    break;
+                case "library":
+                    library = readLibrary(reader);
+                    break;
+                case "links":
+                    enclosure = readEnclosure(reader);
+                    break;
+                case "meta":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if ("creatorSummary".equals(name)) creatorSummary = reader.nextString();
+                        else if ("parsedDate".equals(name)) parsedDate = reader.nextString();
+                        else if ("numChildren".equals(name)) numChildren = reader.nextString();
+                        else reader.skipValue();
+                    }
+                    reader.endObject();
+                    break;
+                case "data":
+                    data = (JSONObject) readValue(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (key == null || data == null) {
+            Log.e(TAG, "Skipping object without key or data");
+            return;
+        }
+
+        String type = data.optString("itemType");
+        String title = title(data, type);
+        String timestamp = data.optString("dateModified");
+        String parentKey = data.optString("parentItem");
+        // Our precondition for writing the object back, as there is no etag
+        int version = data.optInt("version");
+        for (String field : SERVER_FIELDS) {
+            data.remove(field);
+        }
+
+        if ("attachment".equals(type) || "note".equals(type)) {
+            Attachment attachment = new Attachment();
+            attachment.key = key;
+            attachment.parentKey = parentKey;
+            attachment.title = title;
+            attachment.content = data;
+            attachment.version = version;
+            attachment.dirty = APIRequest.API_CLEAN;
+            if (enclosure != null) attachment.url = enclosure;
+            if (!"".equals(attachment.url) || attachment.isDownloadable())
+                attachment.status = Attachment.AVAILABLE;
+            // Don't touch ZFS status here
+            Attachment existing = Attachment.load(key, db);
+            if (existing != null) attachment.status = existing.status;
+            attachment.save(db);
+        } else {
+            Item item = new Item();
+            item.setKey(key);
+            item.setType(type);
+            item.setTitle(title);
+            item.setTimestamp(timestamp);
+            item.setChildren(numChildren);
+            item.setYear(parsedDate.length() >= 4 ? parsedDate.substring(0, 4) : "");
+            item.setCreatorSummary(creatorSummary);
+            item.setId("http://zotero.org/" + library + "/items/" + key);
+            item.setContent(data);
+            item.setVersion(version);
+            item.dirty = APIRequest.API_CLEAN;
+            item.save(db);
+        }
+    }
+
+    /**
+     * @return The library's path, like "users/5770"
+     */
+    private static String readLibrary(JsonReader reader) throws IOException {
+        String type = "user";
+        String id = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) type = reader.nextString();
+            else if ("id".equals(name)) id = reader.nextString();
+            else reader.skipValue();
+        }
+        reader.endObject();
+        return ("group".equals(type) ? "groups/" : "users/") + id;
+    }
+
+    /**
+     * @return The href of the enclosure link, or null
+     */
+    private static String readEnclosure(JsonReader reader) throws IOException {
+        String href = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"enclosure".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("href".equals(reader.nextName())) href = reader.nextString();
+                else reader.skipValue();
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return href;
+    }
+
+    /**
+     * Reads the next value into org.json objects, as the rest of the app
+     * expects content to be
+     */
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    /**
+     * The title as the Atom feed would give it: the title field, or the
+     * first line of a note
+     */
+    private static String title(JSONObject data, String type) {
+        if ("note".equals(type)) {
+            String text = data.optString("note").replaceAll("<[^>]*>", "\n").trim();
+            int end = text.indexOf('\n');
+            return end < 0 ? text : text.substring(0, end).trim();
+        }
+        for (String field : TITLE_FIELDS) {
+            String title = data.optString(field);
+            if (!"".equals(title)) return title;
+        }
+        return "";
+    }
+}
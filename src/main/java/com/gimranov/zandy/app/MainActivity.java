@@ -43,6 +43,7 @@ import android.widget.Toast;
 import com.gimranov.zandy.app.data.Database;
 import com.gimranov.zandy.app.data.Item;
 import com.gimranov.zandy.app.data.ItemAdapter;
+import com.gimranov.zandy.app.data.ItemListCursor;
 import com.gimranov.zandy.app.data.ItemCollection;
 import com.gimranov.zandy.app.task.APIRequest;
 import com.gimranov.zandy.app.task.ZoteroAPITask;
@@ -410,17 +411,15 @@ public class MainActivity extends Activity implements OnClickListener {
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 // If we have a click on an item, do something...
                 ItemAdapter adapter = (ItemAdapter) parent.getAdapter();
-                Cursor cur = adapter.getCursor();
+                ItemListCursor cur = ItemListCursor.of(adapter.getCursor());
                 // Place the cursor at the selected item
                 if (cur.moveToPosition(position)) {
-                    // and load an activity for the item
-                    Item item = Item.load(cur);
-
-                    Log.d(TAG, "Loading item data with key: " + item.getKey());
+                    // and load an activity for the item; it loads the full item itself
+                    Log.d(TAG, "Loading item data with key: " + cur.getKey());
                     // We create and issue a specified intent with the necessary data
                     Intent i = new Intent(getBaseContext(), ItemDataActivity.class);
-                    i.putExtra("com.gimranov.zandy.app.itemKey", item.getKey());
-                    i.putExtra("com.gimranov.zandy.app.itemDbId", item.dbId);
+                    i.putExtra("com.gimranov.zandy.app.itemKey", cur.getKey());
+                    i.putExtra("com.gimranov.zandy.app.itemDbId", cur.getDbId());
                     startActivity(i);
                 } else {
                     // failed to move cursor-- show a toast
@@ -434,7 +433,7 @@ public class MainActivity extends Activity implements OnClickListener {
     }
 
     public Cursor getCursor(String sortBy) {
-        Cursor cursor = db.query("items", Database.ITEMCOLS, null, null, null, null, sortBy, null);
+        Cursor cursor = ItemListCursor.of(db.query("items", Database.LISTCOLS, null, null, null, null, sortBy, null));
         if (cursor == null) {
             Log.e(TAG, "cursor is null");
         }
@@ -1,11 +1,13 @@
 package com.gimranov.zandy.app;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import android.database.Cursor;
 import android.os.Bundle;
 
 import com.gimranov.zandy.app.data.Database;
+import com.gimranov.zandy.app.data.ItemListCursor;
 
 /**
  * This class is intended to provide ways of handling queries to the database.
@@ -14,7 +16,6 @@ import com.gimranov.zandy.app.data.Database;
  * Needed functions:
  * - specify sets of fields and terms for those fields
  * * related need for mapping of fields-- i.e., publicationTitle = journalTitle
- * - provide reasonable efficiency through use of indexes; in SQLite or in Java
  * - return data in efficient fashion, preferably by exposing a Cursor or
  * some other paged access method.
  * - normalize queries and data to let
@@ -24,6 +25,10 @@ import com.gimranov.zandy.app.data.Database;
  * specifically, the raw JSON we're using now won't get us much further. We
  * could in theory maintain an index with tokens drawn from the JSON that
  * we populate on original save... Not sure about this.
+ * <p>
+ * Fields that aren't columns of the items table, like DOI or publicationTitle,
+ * are looked up in the itemfields table, which Item.save keeps in sync with the
+ * JSON and which is indexed on (field, value).
  *
  * @author ajlyon
  */
@@ -48,21 +53,28 @@ public class Query {
         sortBy = term;
     }
 
-    public Cursor query(Database db) {
+    public ItemListCursor query(Database db) {
         StringBuilder sb = new StringBuilder();
-        String[] args = new String[parameters.size()];
-        int i = 0;
+        ArrayList<String> args = new ArrayList<>();
+        List<String> columns = Arrays.asList(Database.ITEMCOLS);
         for (Bundle b : parameters) {
-            if ("tag".equals(b.getString("field"))) {
-                sb.append("item_content LIKE ?");
-                args[i] = "%" + b.getString("value") + "%";
+            String field = b.getString("field");
+            if (sb.length() > 0) sb.append(" AND ");
+            if ("tag".equals(field)) {
+                sb.append("_id IN (SELECT item_id FROM itemtotags, tags WHERE tags._id = tag_id AND tag=?)");
+                args.add(b.getString("value"));
+            } else if (columns.contains(field)) {
+                sb.append(field).append("=?");
+                args.add(b.getString("value"));
             } else {
-                sb.append(b.getString("field")).append("=?");
-                args[i] = b.getString("value");
+                // Any other field is one of the item's JSON fields, which we
+                // find through the itemfields index
+                sb.append("_id IN (SELECT item_id FROM itemfields WHERE field=? AND value=?)");
+                args.add(field);
+                args.add(b.getString("value"));
             }
-            i++;
-            if (i < parameters.size()) sb.append(",");
         }
-        return db.query("items", Database.ITEMCOLS, sb.toString(), args, null, null, this.sortBy, null);
+        return ItemListCursor.of(db.query("items", Database.LISTCOLS, sb.toString(),
+                args.toArray(new String[0]), null, null, this.sortBy, null));
     }
 }
@@ -87,11 +87,13 @@ public class ServerCredentials {
 
     private String userID;
     private String userKey;
+    private boolean jsonFormat;
 
     public ServerCredentials(Context c) {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(c);
         userID = settings.getString("user_id", null);
         userKey = settings.getString("user_key", null);
+        jsonFormat = settings.getBoolean("sync_json", false);
     }
 
     public String prep(String in) {
@@ -119,6 +121,14 @@ public class ServerCredentials {
         return userKey;
     }
 
+    /**
+     * Whether items should be synced in the API's JSON format rather than
+     * as Atom feeds; see JsonResponseParser
+     */
+    public boolean useJsonFormat() {
+        return jsonFormat;
+    }
+
     public static boolean check(Context c) {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(c);
         return settings.getString("user_id", null) != null
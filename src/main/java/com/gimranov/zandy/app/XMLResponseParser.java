@@ -16,29 +16,32 @@
  ******************************************************************************/
 package com.gimranov.zandy.app;
 
-import android.sax.Element;
-import android.sax.ElementListener;
-import android.sax.EndTextElementListener;
-import android.sax.RootElement;
-import android.sax.StartElementListener;
 import android.util.Log;
-import android.util.Xml;
 
 import com.gimranov.zandy.app.data.Attachment;
 import com.gimranov.zandy.app.data.Database;
 import com.gimranov.zandy.app.data.Item;
 import com.gimranov.zandy.app.data.ItemCollection;
+import com.gimranov.zandy.app.data.SyncState;
+import com.gimranov.zandy.app.feed.FeedEntry;
+import com.gimranov.zandy.app.feed.FeedParser;
+import com.gimranov.zandy.app.feed.FeedSink;
 import com.gimranov.zandy.app.task.APIRequest;
+import com.gimranov.zandy.app.task.SyncSession;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.xml.sax.Attributes;
-import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.InputStream;
 import java.util.ArrayList;
 
-public class XMLResponseParser extends DefaultHandler {
+/**
+ * Saves the entries of Atom responses to the database, as the FeedSink of a
+ * FeedParser. Continuations and children found on the way are queued on the
+ * SyncSession of the request; a parser holds no other state shared with
+ * other parsers, so requests can be parsed on several threads at once.
+ */
+public class XMLResponseParser implements FeedSink {
     private static final String TAG = XMLResponseParser.class.getSimpleName();
 
     private InputStream input;
@@ -50,10 +53,34 @@ public class XMLResponseParser extends DefaultHandler {
     private String updateKey;
     private boolean items = false;
     private APIRequest request;
+    private SyncSession session;
+    private Database db;
 
-    public static boolean followNext = true;
+    /**
+     * The continuation link of the feed, if there was one
+     */
+    private String next;
 
-    public static ArrayList<APIRequest> queue;
+    /**
+     * Whether the last parse was committed to the database
+     */
+    private boolean saved;
+
+    /**
+     * Item entries written so far in the current page
+     */
+    private int entries;
+
+    /**
+     * Items of the current page that have children to fetch
+     */
+    private final ArrayList<Item> parents = new ArrayList<>();
+
+    /**
+     * Whether VersionSync keeps the local library current, as read when the
+     * page was parsed
+     */
+    private boolean versioned;
 
     public static final int MODE_ITEMS = 1;
     public static final int MODE_ITEM = 2;
@@ -64,22 +91,15 @@ public class XMLResponseParser extends DefaultHandler {
     public static final int MODE_ENTRY = 6;
     public static final int MODE_FEED = 7;
 
-    private static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
-    private static final String Z_NAMESPACE = "http://zotero.org/ns/api";
-
-    public XMLResponseParser(InputStream in, APIRequest request) {
-        followNext = true;
+    public XMLResponseParser(InputStream in, APIRequest request, SyncSession session) {
         input = in;
         this.request = request;
-        // Initialize the request queue if needed
-        if (queue == null) queue = new ArrayList<>();
+        this.session = session;
     }
 
-    public XMLResponseParser(APIRequest request) {
-        followNext = true;
+    public XMLResponseParser(APIRequest request, SyncSession session) {
         this.request = request;
-        // Initialize the request queue if needed
-        if (queue == null) queue = new ArrayList<>();
+        this.session = session;
     }
 
     public void setInputStream(InputStream in) {
@@ -91,300 +111,278 @@ public class XMLResponseParser extends DefaultHandler {
         updateKey = key;
     }
 
+    /**
+     * @return The continuation link of the parsed feed, or null
+     */
+    public String getNext() {
+        return next;
+    }
+
+    public boolean isSaved() {
+        return saved;
+    }
+
+    /**
+     * Reads the response into the database, in one transaction
+     *
+     * @param mode MODE_ENTRY for a single entry, otherwise MODE_FEED
+     */
     public void parse(int mode, String url, final Database db) {
-        Element entry;
-        RootElement root;
-        // we have a different root for indiv. items
-        if (mode == MODE_FEED) {
-            root = new RootElement(ATOM_NAMESPACE, "feed");
-            entry = root.getChild(ATOM_NAMESPACE, "entry");
-        } else {
-            // MODE_ITEM, MODE_COLLECTION
-            Log.d(TAG, "Parsing in entry mode");
-            root = new RootElement(ATOM_NAMESPACE, "entry");
-            entry = (Element) root;
+        this.db = db;
+        entries = 0;
+        parents.clear();
+        saved = false;
+        db.beginTransaction();
+        try {
+            versioned = SyncState.getLibraryVersion(db) > 0;
+            new FeedParser(this).parse(input, mode != MODE_FEED);
+            if (parent != null) {
+                parent.saveChildren(db);
+                parent.markClean();
+                parent.save(db);
+            }
+            db.setTransactionSuccessful();
+            saved = true;
+        } catch (Exception e) {
+            Log.e(TAG, "exception loading content", e);
+        } finally {
+            db.endTransaction();
+            db.close();
         }
 
-        if (mode == MODE_FEED) {
-            root.getChild(ATOM_NAMESPACE, "link").setStartElementListener(new StartElementListener() {
-                public void start(Attributes attributes) {
-                    String rel = "";
-                    String href = "";
-                    int length = attributes.getLength();
-                    // I shouldn't have to walk through, but the namespacing isn't working here
-                    for (int i = 0; i < length; i++) {
-                        if ("rel".equals(attributes.getQName(i))) rel = attributes.getValue(i);
-                        if ("href".equals(attributes.getQName(i))) href = attributes.getValue(i);
-                    }
-                    // We try to get a parent collection if necessary / possible
-                    if (rel.contains("self")) {
-                        // Try to get a parent collection
-                        int colloc = href.indexOf("/collections/");
-                        int itemloc = href.indexOf("/items");
-                        // Our URL looks like this:
-                        // 		https://api.zotero.org/users/5770/collections/2AJUSIU9/items?content=json
-                        if (colloc != -1 && itemloc != -1) {
-                            // The string "/collections/" is thirteen characters long
-                            String id = href.substring(colloc + 13, itemloc);
-                            Log.d(TAG, "Collection key: " + id);
-                            parent = ItemCollection.load(id, db);
-                            if (parent != null) parent.loadChildren(db);
-                        } else {
-                            Log.d(TAG, "Key extraction failed from root; maybe this isn't a collection listing?");
-                        }
-                    }
-                    // If there are more items, queue them up to be handled too
-                    if (rel.contains("next")) {
-                        Log.d(TAG, "Found continuation: " + href);
-                        APIRequest req = new APIRequest(href, "get", null);
-                        req.query = href;
-                        req.disposition = "xml";
-                        queue.add(req);
-                    }
-                }
-            });
+        if (saved) queueChildren();
+
+        // Listeners re-query the database, so only tell them once the page is committed
+        if (entries > 0) {
+            Log.d(TAG, "Committed page of " + entries + " item entries");
+            request.getHandler().onUpdate(request);
         }
+    }
 
-        entry.setElementListener(new ElementListener() {
-            public void start(Attributes attributes) {
-                item = new Item();
-                collection = new ItemCollection();
-                attachment = new Attachment();
-                Log.d(TAG, "New entry");
+    /**
+     * Queues the requests for the children of the parents in the page, once
+     * the page is committed, so there is a parent to file them under
+     */
+    private void queueChildren() {
+        for (Item parent : parents) {
+            session.queue(APIRequest.children(parent));
+            Log.d(TAG, "Queued children request for item: " + parent.getTitle() + " " + parent.getKey());
+        }
+    }
+
+    @Override
+    public void link(String rel, String href) {
+        // We try to get a parent collection if necessary / possible
+        if (rel.contains("self")) {
+            // Try to get a parent collection
+            int colloc = href.indexOf("/collections/");
+            int itemloc = href.indexOf("/items");
+            // Our URL looks like this:
+            // 		https://api.zotero.org/users/5770/collections/2AJUSIU9/items?content=json
+            if (colloc != -1 && itemloc != -1) {
+                // The string "/collections/" is thirteen characters long
+                String id = href.substring(colloc + 13, itemloc);
+                Log.d(TAG, "Collection key: " + id);
+                parent = ItemCollection.load(id, db);
+                if (parent != null) parent.loadChildren(db);
+            } else {
+                Log.d(TAG, "Key extraction failed from root; maybe this isn't a collection listing?");
             }
+        }
+        // If there are more items, queue them up to be handled too
+        if (rel.contains("next")) {
+            Log.d(TAG, "Found continuation: " + href);
+            next = href;
+            session.queue(APIRequest.continuation(href, request.type));
+        }
+    }
 
-            public void end() {
-                if (items) {
-                    if (updateKey != null && updateType != null && updateType.equals("item")) {
-                        // We have an incoming new version of an item
-                        Item existing = Item.load(updateKey, db);
-                        if (existing != null) {
-                            Log.d(TAG, "Updating newly created item to replace temporary key: "
-                                    + updateKey + " => " + item.getKey() + "");
-                            existing.dirty = APIRequest.API_CLEAN;
-                            // We need to update the parent key in attachments as well,
-                            // so they aren't orphaned after we update the item key here
-                            ArrayList<Attachment> atts = Attachment.forItem(existing, db);
-                            for (Attachment a : atts) {
-                                Log.d(TAG, "Propagating item key replacement to attachment with key: " + a.key);
-                                a.parentKey = item.getKey();
-                                a.save(db);
-                            }
-                            // We can't set the new key until after updating child attachments
-                            existing.setKey(item.getKey());
-                            if (!existing.getType().equals("attachment"))
-                                existing.save(db);
-                        }
-                    } else if (updateKey != null && updateType != null && updateType.equals("attachment")) {
-                        // We have an incoming new version of an item
-                        Attachment existing = Attachment.load(updateKey, db);
-                        if (existing != null) {
-                            Log.d(TAG, "Updating newly created attachment to replace temporary key: "
-                                    + updateKey + " => " + attachment.key + "");
-                            existing.dirty = APIRequest.API_CLEAN;
-                            // we don't change the ZFS status...
-                            existing.key = attachment.key;
-                            existing.save(db);
-                        }
-                    } else {
-                        item.dirty = APIRequest.API_CLEAN;
-                        attachment.dirty = APIRequest.API_CLEAN;
-                        if ((attachment.url != null && !"".equals(attachment.url))
-                                || attachment.isDownloadable())
-                            attachment.status = Attachment.AVAILABLE;
-
-
-                        if (!item.getType().equals("attachment")
-                                && !item.getType().equals("note")) {
-                            Item oldItem = Item.load(item.getKey(), db);
-                            // Check timestamps to see if it's different; if not, we should
-                            // stop following the Atom continuation links
-                            if (oldItem != null && oldItem.getTimestamp().equals(item.getTimestamp())) {
-                                followNext = false;
-                            }
-                            item.save(db);
-                        } else {
-                            // Don't touch ZFS status here
-                            Attachment existing = Attachment.load(attachment.key, db);
-                            if (existing != null) {
-                                attachment.status = existing.status;
-                            }
-                            attachment.save(db);
-                        }
-                    }
+    @Override
+    public void entry(FeedEntry e) {
+        item = new Item();
+        collection = new ItemCollection();
+        attachment = new Attachment();
+        read(e);
 
-                    if (!item.getType().equals("attachment")
-                            && !item.getType().equals("note")
-                            && item.getChildren() != null
-                            && !item.getChildren().equals("0")) {
-                        queue.add(APIRequest.children(item));
-                        Log.d(TAG, "Queued children request for item: " + item.getTitle() + " " + item.getKey());
-                        Log.d(TAG, "Item has children: " + item.getChildren());
+        if (items) {
+            if (updateKey != null && updateType != null && updateType.equals("item")) {
+                // We have an incoming new version of an item
+                Item existing = Item.load(updateKey, db);
+                if (existing != null) {
+                    Log.d(TAG, "Updating newly created item to replace temporary key: "
+                            + updateKey + " => " + item.getKey() + "");
+                    existing.dirty = APIRequest.API_CLEAN;
+                    // We need to update the parent key in attachments as well,
+                    // so they aren't orphaned after we update the item key here
+                    ArrayList<Attachment> atts = Attachment.forItem(existing, db);
+                    for (Attachment a : atts) {
+                        Log.d(TAG, "Propagating item key replacement to attachment with key: " + a.key);
+                        a.parentKey = item.getKey();
+                        a.save(db);
                     }
-
-                    // Add to containing collection
-                    if (!item.getType().equals("attachment") && parent != null)
-                        parent.add(item, true, db);
-
-                    request.getHandler().onUpdate(request);
-
-                    Log.d(TAG, "Done parsing item entry.");
-                    return;
+                    // We can't set the new key until after updating child attachments
+                    existing.setKey(item.getKey());
+                    if (!existing.getType().equals("attachment"))
+                        existing.save(db);
                 }
+            } else if (updateKey != null && updateType != null && updateType.equals("attachment")) {
+                // We have an incoming new version of an item
+                Attachment existing = Attachment.load(updateKey, db);
+                if (existing != null) {
+                    Log.d(TAG, "Updating newly created attachment to replace temporary key: "
+                            + updateKey + " => " + attachment.key + "");
+                    existing.dirty = APIRequest.API_CLEAN;
+                    // we don't change the ZFS status...
+                    existing.key = attachment.key;
+                    existing.save(db);
+                }
+            } else {
+                item.dirty = APIRequest.API_CLEAN;
+                attachment.dirty = APIRequest.API_CLEAN;
+                if ((attachment.url != null && !"".equals(attachment.url))
+                        || attachment.isDownloadable())
+                    attachment.status = Attachment.AVAILABLE;
 
-                if (!items) {
-                    if (updateKey != null && updateType != null && updateType.equals("collection")) {
-                        // We have an incoming new version of a collection
-                        ItemCollection existing = ItemCollection.load(updateKey, db);
-                        if (existing != null) {
-                            Log.d(TAG, "Updating newly created collection to replace temporary key: "
-                                    + updateKey + " => " + collection.getKey() + "");
-                            existing.setKey(collection.getKey());
-                            existing.dirty = APIRequest.API_CLEAN;
-                            existing.save(db);
-                        }
-                        Log.d(TAG, "Done parsing new collection entry.");
-                        // We don't need to load again, since a new collection can't be stale
-                        return;
-                    }
 
-                    ItemCollection ic = ItemCollection.load(collection.getKey(), db);
-                    if (ic != null) {
-                        if (!ic.getTimestamp()
-                                .equals(collection.
-                                        getTimestamp())) {
-                            // In this case, we have data, but we should refresh it
-                            collection.dirty = APIRequest.API_STALE;
-                        } else {
-                            // Collection hasn't changed!
-                            collection = ic;
-                            // We also don't need the next page, if we already saw this one
-                            followNext = false;
-                        }
-                    } else {
-                        // This means that we haven't seen the collection before, so it must be
-                        // a new one, and we don't have contents for it.
-                        collection.dirty = APIRequest.API_MISSING;
+                if (!item.getType().equals("attachment")
+                        && !item.getType().equals("note")) {
+                    item.save(db);
+                } else {
+                    // Don't touch ZFS status here
+                    Attachment existing = Attachment.load(attachment.key, db);
+                    if (existing != null) {
+                        attachment.status = existing.status;
                     }
-                    Log.d(TAG, "Status: " + collection.dirty + " for " + collection.getTitle());
-                    collection.save(db);
-                    Log.d(TAG, "Done parsing a collection entry.");
+                    attachment.save(db);
                 }
             }
-        });
-        entry.getChild(ATOM_NAMESPACE, "title").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setTitle(body);
-                collection.setTitle(body);
-                attachment.title = body;
-                Log.d(TAG, body);
-            }
-        });
-        entry.getChild(Z_NAMESPACE, "key").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setKey(body);
-                collection.setKey(body);
-                attachment.key = body;
-                Log.d(TAG, body);
-            }
-        });
-        entry.getChild(ATOM_NAMESPACE, "updated").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setTimestamp(body);
-                collection.setTimestamp(body);
-                Log.d(TAG, body);
-            }
-        });
-        entry.getChild(Z_NAMESPACE, "itemType").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setType(body);
-                items = true;
-                Log.d(TAG, body);
-            }
-        });
-        entry.getChild(Z_NAMESPACE, "numChildren").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setChildren(body);
-                Log.d(TAG, body);
-            }
-        });
-        entry.getChild(Z_NAMESPACE, "year").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setYear(body);
-                Log.d(TAG, body);
-            }
-        });
-        entry.getChild(Z_NAMESPACE, "creatorSummary").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setCreatorSummary(body);
-                Log.d(TAG, body);
+
+            // Lookups by key list come from VersionSync, which fetches
+            // changed children along with everything else, 50 keys per
+            // request. Once it keeps the library current, no feed needs
+            // to ask for children item by item.
+            if (!versioned
+                    && request.type != APIRequest.ITEMS_BY_KEYS
+                    && !item.getType().equals("attachment")
+                    && !item.getType().equals("note")
+                    && item.getChildren() != null
+                    && !item.getChildren().equals("0")) {
+                parents.add(item);
+                Log.d(TAG, "Item has children: " + item.getChildren());
             }
-        });
-        entry.getChild(ATOM_NAMESPACE, "id").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                item.setId(body);
-                collection.setId(body);
-                Log.d(TAG, body);
+
+            // Add to containing collection
+            if (!item.getType().equals("attachment") && parent != null)
+                parent.add(item, true, db);
+
+            entries++;
+
+            Log.d(TAG, "Done parsing item entry.");
+            return;
+        }
+
+        if (!items) {
+            if (updateKey != null && updateType != null && updateType.equals("collection")) {
+                // We have an incoming new version of a collection
+                ItemCollection existing = ItemCollection.load(updateKey, db);
+                if (existing != null) {
+                    Log.d(TAG, "Updating newly created collection to replace temporary key: "
+                            + updateKey + " => " + collection.getKey() + "");
+                    existing.setKey(collection.getKey());
+                    existing.dirty = APIRequest.API_CLEAN;
+                    existing.save(db);
+                }
+                Log.d(TAG, "Done parsing new collection entry.");
+                // We don't need to load again, since a new collection can't be stale
+                return;
             }
-        });
-        entry.getChild(ATOM_NAMESPACE, "link").setStartElementListener(new StartElementListener() {
-            public void start(Attributes attributes) {
-                String rel = "";
-                String href = "";
-                int length = attributes.getLength();
-                // I shouldn't have to walk through, but the namespacing isn't working here
-                for (int i = 0; i < length; i++) {
-                    if ("rel".equals(attributes.getQName(i))) rel = attributes.getValue(i);
-                    if ("href".equals(attributes.getQName(i))) href = attributes.getValue(i);
+
+            ItemCollection ic = ItemCollection.load(collection.getKey(), db);
+            if (ic != null) {
+                if (!ic.getTimestamp()
+                        .equals(collection.
+                                getTimestamp())) {
+                    // In this case, we have data, but we should refresh it
+                    collection.dirty = APIRequest.API_STALE;
+                } else {
+                    // Collection hasn't changed!
+                    collection = ic;
                 }
-                if (rel != null && rel.equals("up")) {
-                    int start = href.indexOf("/items/");
-                    // Trying to pull out the key of attachment parent
-                    attachment.parentKey = href.substring(start + 7, start + 7 + 8);
-                    Log.d(TAG, "Setting parentKey to: " + attachment.parentKey);
-                } else if (rel != null && rel.equals("enclosure")) {
-                    attachment.url = href;
-                    attachment.status = Attachment.AVAILABLE;
-                    Log.d(TAG, "url= " + attachment.url);
-                } else if (rel != null) Log.d(TAG, "rel=" + rel + " href=" + href);
+            } else {
+                // This means that we haven't seen the collection before, so it must be
+                // a new one, and we don't have contents for it.
+                collection.dirty = APIRequest.API_MISSING;
             }
-        });
-        entry.getChild(ATOM_NAMESPACE, "content").setStartElementListener(new StartElementListener() {
-            public void start(Attributes attributes) {
-                String etag = attributes.getValue(Z_NAMESPACE, "etag");
-                item.setEtag(etag);
-                collection.setEtag(etag);
-                attachment.etag = etag;
-                Log.d(TAG, "etag: " + etag);
+            Log.d(TAG, "Status: " + collection.dirty + " for " + collection.getTitle());
+            collection.save(db);
+            Log.d(TAG, "Done parsing a collection entry.");
+        }
+    }
+
+    /**
+     * Copies the entry's fields to the item, collection and attachment, since
+     * we don't know yet which of them it is
+     */
+    private void read(FeedEntry e) {
+        if (e.title != null) {
+            item.setTitle(e.title);
+            collection.setTitle(e.title);
+            attachment.title = e.title;
+        }
+        if (e.key != null) {
+            item.setKey(e.key);
+            collection.setKey(e.key);
+            attachment.key = e.key;
+        }
+        if (e.updated != null) {
+            item.setTimestamp(e.updated);
+            collection.setTimestamp(e.updated);
+        }
+        if (e.itemType != null) {
+            item.setType(e.itemType);
+            items = true;
+        }
+        if (e.numChildren != null) item.setChildren(e.numChildren);
+        if (e.year != null) item.setYear(e.year);
+        if (e.creatorSummary != null) item.setCreatorSummary(e.creatorSummary);
+        if (e.id != null) {
+            item.setId(e.id);
+            collection.setId(e.id);
+        }
+        if (e.parentKey != null) {
+            attachment.parentKey = e.parentKey;
+            Log.d(TAG, "Setting parentKey to: " + attachment.parentKey);
+        }
+        if (e.enclosure != null) {
+            attachment.url = e.enclosure;
+            attachment.status = Attachment.AVAILABLE;
+        }
+        if (e.etag != null) {
+            item.setEtag(e.etag);
+            collection.setEtag(e.etag);
+            attachment.etag = e.etag;
+        }
+        if (e.version != null) {
+            try {
+                item.setVersion(Integer.parseInt(e.version));
+                attachment.version = item.getVersion();
+            } catch (NumberFormatException ex) {
+                Log.e(TAG, "Unreadable object version: " + e.version, ex);
             }
-        });
-        entry.getChild(ATOM_NAMESPACE, "content").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
+        }
+        if (e.content != null) {
+            try {
+                JSONObject obj = new JSONObject(e.content);
                 try {
-                    JSONObject obj = new JSONObject(body);
-                    try {
-                        collection.setParent(obj.getString("parent"));
-                    } catch (JSONException e) {
-                        Log.d(TAG, "No parent found in JSON content; not a subcollection or not a collection");
-                    }
-                    item.setContent(obj);
-                    attachment.content = obj;
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON parse exception loading content", e);
+                    collection.setParent(obj.getString("parent"));
+                } catch (JSONException ex) {
+                    Log.d(TAG, "No parent found in JSON content; not a subcollection or not a collection");
                 }
-                Log.d(TAG, body);
+                item.setContent(obj);
+                attachment.content = obj;
+            } catch (JSONException ex) {
+                Log.e(TAG, "JSON parse exception loading content", ex);
             }
-        });
-        try {
-            Xml.parse(this.input, Xml.Encoding.UTF_8, root.getContentHandler());
-            if (parent != null) {
-                parent.saveChildren(db);
-                parent.markClean();
-                parent.save(db);
-            }
-            db.close();
-        } catch (Exception e) {
-            Log.e(TAG, "exception loading content", e);
         }
     }
 }
@@ -21,6 +21,12 @@ public class Attachment {
     public String key;
     public String parentKey;
     public String etag;
+
+    /**
+     * The object version from API version 2 and up, or 0 if we only have the
+     * etag; writes send it as their precondition
+     */
+    public int version;
     public int status;
     public String dbId;
     public String title;
@@ -44,15 +50,10 @@ public class Attachment {
    }
 	 */
 
-    /**
-     * Queue of attachments that need to be synced, because they're dirty
-     */
-    public static ArrayList<Attachment> queue;
-
     /**
      * APIRequest.API_DIRTY means that we'll try to push this version up to the server
      */
-    public String dirty;
+    public int dirty;
 
     /**
      * Zotero's JSON format for attachment / child information
@@ -62,8 +63,24 @@ public class Attachment {
      */
     public JSONObject content;
 
+    /**
+     * The key of the row as last loaded or saved, so that a save that changes
+     * the key drops the cached copy under the old one as well
+     */
+    private String storedKey;
+
     private static final String TAG = Attachment.class.getSimpleName();
 
+    /**
+     * Copies of the attachments loaded by key, invalidated by save and delete
+     */
+    static final ObjectCache<Attachment> cache = new ObjectCache<Attachment>("Attachment", 200) {
+        @Override
+        Attachment copy(Attachment attachment) {
+            return attachment.copy();
+        }
+    };
+
     public static final int AVAILABLE = 1;
     public static final int LOCAL = 2;
     public static final int UNKNOWN = 3;
@@ -74,8 +91,8 @@ public class Attachment {
     public static final String MODE_IMPORTED_FILE = "imported_file";
 
     public Attachment() {
-        if (queue == null) queue = new ArrayList<>();
-        parentKey = title = filename = url = etag = dirty = "";
+        parentKey = title = filename = url = etag = "";
+        dirty = APIRequest.API_DIRTY;
         status = UNKNOWN;
         content = new JSONObject();
     }
@@ -93,6 +110,30 @@ public class Attachment {
         dirty = APIRequest.API_NEW;
     }
 
+    /**
+     * @return A copy sharing no mutable state with this attachment
+     */
+    Attachment copy() {
+        Attachment c = new Attachment();
+        c.key = key;
+        c.parentKey = parentKey;
+        c.etag = etag;
+        c.version = version;
+        c.status = status;
+        c.dbId = dbId;
+        c.title = title;
+        c.filename = filename;
+        c.url = url;
+        c.dirty = dirty;
+        c.storedKey = storedKey;
+        try {
+            c.content = new JSONObject(content.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Caught JSON exception copying attachment content", e);
+        }
+        return c;
+    }
+
     public String getType() {
         String type = "";
         try {
@@ -174,15 +215,36 @@ public class Attachment {
         }
     }
 
+    /**
+     * Saves the attachment, and records it in the change journal unless it's clean
+     */
     public void save(Database db) {
+        db.beginTransaction();
+        try {
+            write(db);
+            if (dirty != APIRequest.API_CLEAN) {
+                ChangeJournal.record(db, ChangeJournal.OBJECT_ATTACHMENT, key,
+                        ChangeJournal.ACTION_UPDATE, null, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.invalidate(key);
+            if (storedKey != null && !storedKey.equals(key)) cache.invalidate(storedKey);
+            storedKey = key;
+        }
+        db.close();
+    }
+
+    private void write(Database db) {
         Attachment existing = load(key, db);
         if (dbId == null && existing == null) {
             Log.d(TAG, "Saving new, with status: " + status);
-            String[] args = {key, parentKey, title, filename, url, Integer.toString(status), etag, dirty, content.toString()};
+            String[] args = {key, parentKey, title, filename, url, Integer.toString(status), etag, Integer.toString(dirty), content.toString(), Integer.toString(version)};
             Cursor cur = db
                     .rawQuery(
-                            "insert into attachments (attachment_key, item_key, title, filename, url, status, etag, dirty, content) "
-                                    + "values (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                            "insert into attachments (attachment_key, item_key, title, filename, url, status, etag, dirty, content, version) "
+                                    + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
                             args);
             if (cur != null)
                 cur.close();
@@ -192,62 +254,51 @@ public class Attachment {
             Log.d(TAG, "Updating attachment, with status: " + status + " and fn: " + filename);
             if (dbId == null)
                 dbId = existing.dbId;
-            String[] args = {key, parentKey, title, filename, url, Integer.toString(status), etag, dirty, content.toString(), dbId};
+            String[] args = {key, parentKey, title, filename, url, Integer.toString(status), etag, Integer.toString(dirty), content.toString(), Integer.toString(version), dbId};
             Cursor cur = db
                     .rawQuery(
                             "update attachments set attachment_key=?, item_key=?, title=?," +
                                     " filename=?, url=?, status=?, etag=?, dirty=?, " +
-                                    " content=? "
+                                    " content=?, version=? "
                                     + " where _id=?", args);
             if (cur != null)
                 cur.close();
         }
-        db.close();
+        if ("note".equals(getType()))
+            ItemSearchIndex.indexNotes(parentKey, db);
     }
 
     /**
-     * Deletes an attachment from the database, keeping a record of it in the deleteditems table
+     * Deletes an attachment from the database, keeping a record of it in the change journal
      * We will then send out delete requests via the API to propagate the deletion
      */
     public void delete(Database db) {
-        String[] args = {dbId};
-        db.rawQuery("delete from attachments where _id=?", args);
-        // Don't prepare deletion requests for unsynced new attachments
-        if (!APIRequest.API_NEW.equals(dirty)) {
-            String[] args2 = {key, etag};
-            db.rawQuery("insert into deleteditems (item_key, etag) values (?, ?)", args2);
-        }
+        delete(db, false);
     }
 
     /**
-     * Identifies dirty items in the database and queues them for syncing
+     * Deletes an attachment from the database. When fromAPI is not true,
+     * records the deletion in the change journal as well.
+     *
+     * @param fromAPI True for attachments that the server has already deleted
      */
-    public static void queue(Database db) {
-        if (queue == null) {
-            // Initialize the queue if necessary
-            queue = new ArrayList<>();
-        }
-        Log.d(TAG, "Clearing attachment dirty queue before repopulation");
-        queue.clear();
-        Attachment attachment;
-        String[] cols = Database.ATTCOLS;
-        String[] args = {APIRequest.API_CLEAN};
-        Cursor cur = db.query("attachments", cols, "dirty != ?", args, null, null,
-                null, null);
-
-        if (cur == null) {
-            Log.d(TAG, "No dirty attachments found in database");
-            queue.clear();
-            return;
+    public void delete(Database db, boolean fromAPI) {
+        db.beginTransaction();
+        try {
+            String[] args = {dbId};
+            db.rawQuery("delete from attachments where _id=?", args);
+            if ("note".equals(getType()))
+                ItemSearchIndex.indexNotes(parentKey, db);
+            // Don't prepare deletion requests for unsynced new attachments
+            if (!fromAPI && dirty != APIRequest.API_NEW) {
+                ChangeJournal.record(db, ChangeJournal.OBJECT_ATTACHMENT, key,
+                        ChangeJournal.ACTION_DELETE, null, etag);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.invalidate(key);
         }
-
-        do {
-            Log.d(TAG, "Adding attachment to dirty queue");
-            attachment = load(cur);
-            queue.add(attachment);
-        } while (cur.moveToNext());
-
-        cur.close();
     }
 
     /**
@@ -271,21 +322,27 @@ public class Attachment {
             a.status = UNKNOWN;
         }
         a.etag = cur.getString(7);
-        a.dirty = cur.getString(8);
+        a.dirty = cur.getInt(8);
         try {
             a.content = new JSONObject(cur.getString(9));
         } catch (JSONException e) {
             Log.e(TAG, "Caught JSON exception loading attachment from db", e);
         }
+        a.version = cur.getInt(10);
+        a.storedKey = a.key;
         return a;
     }
 
     public static Attachment load(String key, Database db) {
+        Attachment cached = cache.get(key);
+        if (cached != null) return cached;
+
         String[] cols = Database.ATTCOLS;
         String[] args = {key};
         Cursor cur = db.query("attachments", cols, "attachment_key=?", args, null, null, null, null);
         Attachment a = load(cur);
         if (cur != null) cur.close();
+        cache.put(key, a);
         return a;
     }
 
@@ -301,7 +358,7 @@ public class Attachment {
         if (item.dbId == null) item.save(db);
         Log.d(TAG, "Looking for the kids of an item with key: " + item.getKey());
 
-        String[] cols = {"_id", "attachment_key", "item_key", "title", "filename", "url", "status", "etag", "dirty", "content"};
+        String[] cols = Database.ATTCOLS;
         String[] args = {item.getKey()};
         Cursor cursor = db.query("attachments", cols, "item_key=?", args, null, null, null, null);
 
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Append-only journal of local changes that the server hasn't seen yet, kept
+ * in the changes table. Entries are written in the same transaction as the
+ * change itself, by Item.save, Attachment.save, the deletes, and the
+ * collection membership methods of ItemCollection.
+ * <p>
+ * The sync code reads the journal in order with pending(..), turns it into
+ * requests, and then clears what it read with clear(..).
+ */
+public final class ChangeJournal {
+    private static final String TAG = ChangeJournal.class.getSimpleName();
+
+    /**
+     * Kinds of object that changes are recorded for
+     */
+    public static final int OBJECT_ITEM = 1;
+    public static final int OBJECT_ATTACHMENT = 2;
+
+    /**
+     * Kinds of change. For updates, the field is the JSON field that changed,
+     * or null when we don't know. For deletions, the target is the last etag
+     * we had; for membership changes, the collection key.
+     */
+    public static final int ACTION_UPDATE = 1;
+    public static final int ACTION_DELETE = 2;
+    public static final int ACTION_MEMBERSHIP_ADD = 3;
+    public static final int ACTION_MEMBERSHIP_REMOVE = 4;
+
+    private static final String INSERT = "insert into changes" +
+            " (object_type, object_key, action, field, target) values (?, ?, ?, ?, ?)";
+
+    private ChangeJournal() {
+    }
+
+    /**
+     * One entry of the journal
+     */
+    public static class Change {
+        public final long id;
+        public final int objectType;
+        public final String objectKey;
+        public final int action;
+        public final String field;
+        public final String target;
+
+        Change(Cursor cur) {
+            id = cur.getLong(0);
+            objectType = cur.getInt(1);
+            objectKey = cur.getString(2);
+            action = cur.getInt(3);
+            field = cur.getString(4);
+            target = cur.getString(5);
+        }
+
+        @Override
+        public String toString() {
+            return "Change " + id + ": action " + action + " on " + objectKey
+                    + (field == null ? "" : ", field " + field)
+                    + (target == null ? "" : ", target " + target);
+        }
+    }
+
+    /**
+     * Appends a change. Call this inside the transaction that makes the change.
+     */
+    public static void record(Database db, int objectType, String objectKey, int action,
+                              String field, String target) {
+        if (objectKey == null) {
+            Log.e(TAG, "Not recording change without an object key, action " + action);
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement(INSERT);
+        insert.bindLong(1, objectType);
+        insert.bindString(2, objectKey);
+        insert.bindLong(3, action);
+        if (field == null) insert.bindNull(4);
+        else insert.bindString(4, field);
+        if (target == null) insert.bindNull(5);
+        else insert.bindString(5, target);
+        insert.executeInsert();
+        insert.close();
+    }
+
+    /**
+     * @return Every change not yet cleared, oldest first
+     */
+    public static ArrayList<Change> pending(Database db) {
+        ArrayList<Change> changes = new ArrayList<>();
+        Cursor cur = db.rawQuery("select _id, object_type, object_key, action, field, target" +
+                " from changes order by _id", new String[]{});
+        if (cur == null) return changes;
+        do {
+            changes.add(new Change(cur));
+        } while (cur.moveToNext());
+        cur.close();
+        return changes;
+    }
+
+    /**
+     * Removes the changes up to and including the specified one
+     */
+    public static void clear(Database db, long upTo) {
+        SQLiteStatement delete = db.compileStatement("delete from changes where _id <= ?");
+        delete.bindLong(1, upTo);
+        int deleted = delete.executeUpdateDelete();
+        delete.close();
+        Log.d(TAG, "Cleared " + deleted + " changes from the journal");
+    }
+}
@@ -66,8 +66,8 @@ public class CollectionAdapter extends ResourceCursorAdapter {
 		StringBuilder sb = new StringBuilder();
 		sb.append(collection.getSize()).append(" items");
 		sb.append("; ").append(collection.getSubcollections(db).size()).append(" subcollections");
-		if(!collection.dirty.equals(APIRequest.API_CLEAN))
-			sb.append("; ").append(collection.dirty);
+		if(collection.dirty != APIRequest.API_CLEAN)
+			sb.append("; ").append(context.getString(APIRequest.dirtyLabel(collection.dirty)));
 		tvInfo.setText(sb.toString());
 		db.close();
 	}
@@ -8,30 +8,60 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.gimranov.zandy.app.task.APIRequest;
+
 public class Database {
     public static final String TAG = Database.class.getSimpleName();
 
+    /**
+     * Table expression for reading ITEMCOLS, which include the content from
+     * the itemcontent table
+     */
+    static final String ITEMS_WITH_CONTENT = "items LEFT JOIN itemcontent USING (_id)";
     public static final String[] ITEMCOLS = {"item_title", "item_type",
             "item_content", "etag", "dirty", "_id", "item_key", "item_year",
-            "item_creator", "timestamp", "item_children"};
+            "item_creator", "timestamp", "item_children", "version"};
+    /**
+     * Item columns for list rows, read through ItemListCursor
+     */
+    public static final String[] LISTCOLS = {"_id", "item_key", "item_title",
+            "item_type", "item_creator", "item_year", "item_children", "dirty"};
     public static final String[] COLLCOLS = {"collection_name",
             "collection_parent", "etag", "dirty", "_id", "collection_key",
             "collection_size", "timestamp"};
     static final String[] ATTCOLS = {"_id", "attachment_key",
             "item_key", "title", "filename", "url", "status", "etag",
-            "dirty", "content"};
+            "dirty", "content", "version"};
+    public static final String[] TAGCOLS = {"_id", "tag", "item_count"};
     public static final String[] REQUESTCOLS = {"_id", "uuid", "type",
             "query", "key", "method", "disposition", "if_match", "update_key",
             "update_type", "created", "last_attempt", "status", "body"};
 
     // the database version; increment to call update
-    private static final int DATABASE_VERSION = 20;
+    private static final int DATABASE_VERSION = 31;
 
     private static final String DATABASE_NAME = "Zotero";
     private final DatabaseOpenHelper mDatabaseOpenHelper;
 
+    /**
+     * Set only when wrapping the database handed to us during an upgrade,
+     * since asking the helper for it then would be a recursive call.
+     */
+    private final SQLiteDatabase mDatabase;
+
     public Database(Context context) {
         mDatabaseOpenHelper = DatabaseOpenHelper.getHelper(context);
+        mDatabase = null;
+    }
+
+    private Database(SQLiteDatabase database) {
+        mDatabaseOpenHelper = null;
+        mDatabase = database;
+    }
+
+    private SQLiteDatabase getDatabase() {
+        if (mDatabase != null) return mDatabase;
+        return mDatabaseOpenHelper.getWritableDatabase();
     }
 
     /**
@@ -41,19 +71,33 @@ public class Database {
         Log.d(TAG, "Dropping tables to reset database");
         String[] tables = {"collections", "items", "creators", "children",
                 "itemtocreators", "itemtocollections", "deleteditems", "attachments",
-                "apirequests", "notes"};
+                "apirequests", "notes", "itemsearch", "itemfields", "tags", "itemtotags",
+                "itemcontent", "changes", "syncstate", "httpcache"};
         String[] args = {};
         for (String table : tables) {
             rawQuery("DROP TABLE IF EXISTS " + table, args);
         }
+        Item.cache.clear();
+        Attachment.cache.clear();
+        ItemCollection.cache.clear();
         Log.d(TAG, "Recreating database tables");
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+        SQLiteDatabase db = getDatabase();
         mDatabaseOpenHelper.onCreate(db);
     }
 
+    /**
+     * Logs the hit and miss counts of the object caches kept by Item,
+     * Attachment and ItemCollection
+     */
+    public static void logCacheStats() {
+        Log.d(TAG, Item.cache.toString());
+        Log.d(TAG, Attachment.cache.toString());
+        Log.d(TAG, ItemCollection.cache.toString());
+    }
+
     public Cursor query(String table, String[] columns, String selection,
                         String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+        SQLiteDatabase db = getDatabase();
         Cursor cursor = db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
         if (cursor == null) {
             return null;
@@ -66,7 +110,7 @@ public class Database {
 
     public Cursor rawQuery(String selection, String[] args) {
         Log.d(TAG, "Query: " + selection);
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+        SQLiteDatabase db = getDatabase();
         Cursor cursor = db.rawQuery(selection, args);
         if (cursor == null) {
             return null;
@@ -77,18 +121,24 @@ public class Database {
         return cursor;
     }
 
-    void beginTransaction() {
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+    /**
+     * Transactions nest, so callers can group saves that open transactions of
+     * their own. Every beginTransaction must be paired with an endTransaction
+     * in a finally block, and the work is only committed if
+     * setTransactionSuccessful was called in between.
+     */
+    public void beginTransaction() {
+        SQLiteDatabase db = getDatabase();
         db.beginTransaction();
     }
 
-    void endTransaction() {
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+    public void endTransaction() {
+        SQLiteDatabase db = getDatabase();
         db.endTransaction();
     }
 
-    void setTransactionSuccessful() {
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+    public void setTransactionSuccessful() {
+        SQLiteDatabase db = getDatabase();
         db.setTransactionSuccessful();
     }
 
@@ -99,7 +149,7 @@ public class Database {
     }
 
     public SQLiteStatement compileStatement(String sql) throws SQLiteException {
-        SQLiteDatabase db = mDatabaseOpenHelper.getWritableDatabase();
+        SQLiteDatabase db = getDatabase();
         return db.compileStatement(sql);
     }
 
@@ -122,7 +172,7 @@ public class Database {
                         "collection_type text, " +
                         "collection_size int, " +
                         "etag string, " +
-                        "dirty string, " +
+                        "dirty int, " +
                         "timestamp string);";
 
         private static final String ITEMS_CREATE =
@@ -132,36 +182,99 @@ public class Database {
                         "item_title string not null, " +
                         "etag string, " +
                         "item_type string not null, " +
-                        "item_content string," +
                         "item_year string," +
                         "item_creator string," +
                         "item_children string," +
-                        "dirty string, " +
-                        "timestamp string);";
+                        "dirty int, " +
+                        "timestamp string, " +
+                        "version int not null default 0);";
 
+        /*
+         * The content JSON of each item, keyed by items._id. It is kept out of
+         * the items table so that scans of the summary columns stay small.
+         */
+        private static final String ITEMCONTENT_CREATE =
+                "create table itemcontent" +
+                        " (_id integer primary key, " +
+                        "item_content string);";
+
+        /*
+         * Creators are shared between items; a creator is identified by its
+         * name parts, and the role it plays is kept on the link to the item.
+         */
         private static final String CREATORS_CREATE =
                 "create table creators" +
                         " (_id integer primary key autoincrement, " +
-                        "name string, " +
-                        "firstName string, " +
-                        "lastName string, " +
-                        "creatorType string );";
+                        "name string not null default '', " +
+                        "firstName string not null default '', " +
+                        "lastName string not null default '');";
+
+        private static final String CREATORS_INDEX_CREATE =
+                "create unique index creators_names on creators (lastName, firstName, name);";
 
         private static final String ITEM_TO_CREATORS_CREATE =
                 "create table itemtocreators" +
                         " (_id integer primary key autoincrement, "
-                        + "creator_id int not null, item_id int not null);";
+                        + "creator_id int not null, item_id int not null, "
+                        + "creatorType string, position int not null default 0);";
+
+        private static final String ITEM_TO_CREATORS_ITEM_INDEX_CREATE =
+                "create index itemtocreators_item on itemtocreators (item_id, position);";
+
+        private static final String ITEM_TO_CREATORS_CREATOR_INDEX_CREATE =
+                "create index itemtocreators_creator on itemtocreators (creator_id);";
 
         private static final String ITEM_TO_COLLECTIONS_CREATE =
                 "create table itemtocollections" +
                         " (_id integer primary key autoincrement, "
                         + "collection_id int not null, item_id int not null);";
 
+        /*
+         * Each membership is stored once, which lets ItemCollection.saveChildren
+         * insert new memberships with "insert or ignore" and count what it added.
+         */
+        private static final String ITEM_TO_COLLECTIONS_INDEX_CREATE =
+                "create unique index itemtocollections_membership" +
+                        " on itemtocollections (collection_id, item_id);";
+
         private static final String DELETED_ITEMS_CREATE =
                 "create table deleteditems" +
                         " (_id integer primary key autoincrement, "
                         + "item_key string not null, etag string not null);";
 
+        /*
+         * Journal of local changes waiting to be sent; see ChangeJournal.
+         * It replaces the deleteditems table, which is only created now by
+         * upgrades that pass through version 15.
+         */
+        private static final String CHANGES_CREATE =
+                "create table changes" +
+                        " (_id integer primary key autoincrement, "
+                        + "object_type int not null, "
+                        + "object_key string not null, "
+                        + "action int not null, "
+                        + "field string, "
+                        + "target string);";
+
+        /*
+         * Named values describing the state of the sync; see SyncState.
+         */
+        private static final String SYNCSTATE_CREATE =
+                "create table syncstate" +
+                        " (name string primary key, "
+                        + "value string);";
+
+        /*
+         * Validators of the feeds we have parsed, by URL without the API
+         * key; see HttpCache.
+         */
+        private static final String HTTPCACHE_CREATE =
+                "create table httpcache" +
+                        " (url string primary key, "
+                        + "etag string, "
+                        + "last_modified string, "
+                        + "next string);";
+
         private static final String ATTACHMENTS_CREATE =
                 "create table attachments" +
                         " (_id integer primary key autoincrement, "
@@ -173,7 +286,16 @@ public class Database {
                         + "status string, "
                         + "content string, "
                         + "etag string, "
-                        + "dirty string);";
+                        + "dirty int, "
+                        + "version int not null default 0);";
+
+        /*
+         * The dirty columns hold the APIRequest.API_* statuses, and only rows
+         * with a positive status need uploading. Those are few next to the
+         * clean rows, so the indexes only cover them where SQLite can do
+         * partial indexes (3.8.0, Android 5.0); see createDirtyIndex(..).
+         */
+        private static final String[] DIRTY_INDEXED_TABLES = {"items", "attachments"};
 
         private static final String APIREQUESTS_CREATE =
                 "create table apirequests" +
@@ -192,6 +314,52 @@ public class Database {
                         + "status integer,"
                         + "body string);";
 
+        /*
+         * Full-text index over items, with the docid set to items._id. The notes
+         * column holds the text of the item's child notes.
+         */
+        private static final String ITEMSEARCH_CREATE =
+                "create virtual table itemsearch using fts4" +
+                        " (title, creators, tags, fields, notes);";
+
+        /*
+         * One row per scalar field of each item's JSON content, so that we can
+         * look up items by field value through an index.
+         */
+        private static final String ITEMFIELDS_CREATE =
+                "create table itemfields" +
+                        " (_id integer primary key autoincrement, "
+                        + "item_id int not null, "
+                        + "field string not null, "
+                        + "value string collate nocase);";
+
+        private static final String ITEMFIELDS_INDEX_CREATE =
+                "create index itemfields_field_value on itemfields (field, value);";
+
+        private static final String ITEMFIELDS_ITEM_INDEX_CREATE =
+                "create index itemfields_item on itemfields (item_id);";
+
+        /*
+         * Library-wide tags. item_count is kept up to date as items gain and
+         * lose tags, so tag lists don't need to count memberships.
+         */
+        private static final String TAGS_CREATE =
+                "create table tags" +
+                        " (_id integer primary key autoincrement, "
+                        + "tag string unique not null, "
+                        + "item_count int not null default 0);";
+
+        private static final String ITEM_TO_TAGS_CREATE =
+                "create table itemtotags" +
+                        " (_id integer primary key autoincrement, "
+                        + "tag_id int not null, item_id int not null, type int);";
+
+        private static final String ITEM_TO_TAGS_INDEX_CREATE =
+                "create unique index itemtotags_tag_item on itemtotags (tag_id, item_id);";
+
+        private static final String ITEM_TO_TAGS_ITEM_INDEX_CREATE =
+                "create index itemtotags_item on itemtotags (item_id);";
+
         /* We don't use this table right now */
         private static final String NOTES_CREATE =
                 "create table notes" +
@@ -221,13 +389,44 @@ public class Database {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(COLLECTIONS_CREATE);
             db.execSQL(ITEMS_CREATE);
+            db.execSQL(ITEMCONTENT_CREATE);
             db.execSQL(CREATORS_CREATE);
+            db.execSQL(CREATORS_INDEX_CREATE);
             db.execSQL(ITEM_TO_CREATORS_CREATE);
+            db.execSQL(ITEM_TO_CREATORS_ITEM_INDEX_CREATE);
+            db.execSQL(ITEM_TO_CREATORS_CREATOR_INDEX_CREATE);
             db.execSQL(ITEM_TO_COLLECTIONS_CREATE);
-            db.execSQL(DELETED_ITEMS_CREATE);
+            db.execSQL(ITEM_TO_COLLECTIONS_INDEX_CREATE);
+            db.execSQL(CHANGES_CREATE);
+            db.execSQL(SYNCSTATE_CREATE);
+            db.execSQL(HTTPCACHE_CREATE);
             db.execSQL(ATTACHMENTS_CREATE);
             db.execSQL(NOTES_CREATE);
             db.execSQL(APIREQUESTS_CREATE);
+            db.execSQL(ITEMSEARCH_CREATE);
+            db.execSQL(ITEMFIELDS_CREATE);
+            db.execSQL(ITEMFIELDS_INDEX_CREATE);
+            db.execSQL(ITEMFIELDS_ITEM_INDEX_CREATE);
+            db.execSQL(TAGS_CREATE);
+            db.execSQL(ITEM_TO_TAGS_CREATE);
+            db.execSQL(ITEM_TO_TAGS_INDEX_CREATE);
+            db.execSQL(ITEM_TO_TAGS_ITEM_INDEX_CREATE);
+            for (String table : DIRTY_INDEXED_TABLES) createDirtyIndex(db, table);
+        }
+
+        /**
+         * Indexes the rows of the table that have unsynced changes. Older
+         * SQLite versions reject the where clause, and get an index over the
+         * whole column instead.
+         */
+        private static void createDirtyIndex(SQLiteDatabase db, String table) {
+            try {
+                db.execSQL("create index " + table + "_dirty on " + table + " (dirty)" +
+                        " where dirty > " + APIRequest.API_CLEAN);
+            } catch (SQLiteException e) {
+                Log.d(TAG, "No partial index support, indexing all of " + table + ".dirty");
+                db.execSQL("create index " + table + "_dirty on " + table + " (dirty)");
+            }
         }
 
 
@@ -277,9 +476,111 @@ public class Database {
                     db.execSQL("alter table attachments " +
                             " add column dirty string;");
                 }
-                if (oldVersion == 19 && newVersion == 20) {
+                if (oldVersion == 19) {
                     db.execSQL(APIREQUESTS_CREATE);
                 }
+                /* This has to run before the index rebuilds below, which read the
+                 * items through ITEMS_WITH_CONTENT. SQLite can't drop columns,
+                 * so the items table is copied without item_content, keeping
+                 * the _id values that everything else refers to.
+                 */
+                if (oldVersion < 26) {
+                    db.execSQL(ITEMCONTENT_CREATE);
+                    db.execSQL("insert into itemcontent (_id, item_content)" +
+                            " select _id, item_content from items");
+                    db.execSQL("alter table items rename to items_old");
+                    db.execSQL(ITEMS_CREATE);
+                    db.execSQL("insert into items (_id, item_key, item_title, etag, item_type," +
+                            " item_year, item_creator, item_children, dirty, timestamp)" +
+                            " select _id, item_key, item_title, etag, item_type," +
+                            " item_year, item_creator, item_children, dirty, timestamp from items_old");
+                    db.execSQL("drop table items_old");
+                }
+                if (oldVersion < 21) {
+                    db.execSQL(ITEMSEARCH_CREATE);
+                    ItemSearchIndex.rebuild(new Database(db));
+                }
+                if (oldVersion < 22) {
+                    db.execSQL(ITEMFIELDS_CREATE);
+                    db.execSQL(ITEMFIELDS_INDEX_CREATE);
+                    db.execSQL(ITEMFIELDS_ITEM_INDEX_CREATE);
+                    ItemFields.rebuild(new Database(db));
+                }
+                if (oldVersion < 23) {
+                    db.execSQL(TAGS_CREATE);
+                    db.execSQL(ITEM_TO_TAGS_CREATE);
+                    db.execSQL(ITEM_TO_TAGS_INDEX_CREATE);
+                    db.execSQL(ITEM_TO_TAGS_ITEM_INDEX_CREATE);
+                    ItemTags.rebuild(new Database(db));
+                }
+                if (oldVersion < 24) {
+                    // Nothing was ever written to the old creator tables
+                    db.execSQL("DROP TABLE IF EXISTS creators");
+                    db.execSQL("DROP TABLE IF EXISTS itemtocreators");
+                    db.execSQL(CREATORS_CREATE);
+                    db.execSQL(CREATORS_INDEX_CREATE);
+                    db.execSQL(ITEM_TO_CREATORS_CREATE);
+                    db.execSQL(ITEM_TO_CREATORS_ITEM_INDEX_CREATE);
+                    db.execSQL(ITEM_TO_CREATORS_CREATOR_INDEX_CREATE);
+                    ItemCreators.rebuild(new Database(db));
+                }
+                if (oldVersion < 25) {
+                    // Drop duplicate memberships left by earlier versions, then
+                    // fix the sizes, which are only adjusted incrementally from now on
+                    db.execSQL("delete from itemtocollections where _id not in" +
+                            " (select min(_id) from itemtocollections group by collection_id, item_id)");
+                    db.execSQL(ITEM_TO_COLLECTIONS_INDEX_CREATE);
+                    db.execSQL("update collections set collection_size =" +
+                            " (select count(*) from itemtocollections where collection_id = collections._id)");
+                }
+                if (oldVersion < 27) {
+                    // The statuses used to be stored as their display strings
+                    for (String table : new String[]{"items", "attachments", "collections"}) {
+                        db.execSQL("update " + table + " set dirty =" +
+                                " case coalesce(dirty, 'No unsynced change')" +
+                                " when 'No unsynced change' then " + APIRequest.API_CLEAN +
+                                " when 'Unsynced change' then " + APIRequest.API_DIRTY +
+                                " when 'New item / collection' then " + APIRequest.API_NEW +
+                                " when 'Sync attempted' then " + APIRequest.API_WIP +
+                                " when 'Partial data' then " + APIRequest.API_MISSING +
+                                " when 'Stale data' then " + APIRequest.API_STALE +
+                                " else " + APIRequest.API_DIRTY + " end");
+                    }
+                    for (String table : DIRTY_INDEXED_TABLES) createDirtyIndex(db, table);
+                }
+                if (oldVersion < 28) {
+                    // Start the journal with what the sync used to find by scanning
+                    db.execSQL(CHANGES_CREATE);
+                    db.execSQL("create table if not exists deleteditems" +
+                            " (_id integer primary key autoincrement, "
+                            + "item_key string not null, etag string not null);");
+                    db.execSQL("insert into changes (object_type, object_key, action, target)" +
+                            " select " + ChangeJournal.OBJECT_ITEM + ", item_key, "
+                            + ChangeJournal.ACTION_DELETE + ", etag from deleteditems order by _id");
+                    db.execSQL("insert into changes (object_type, object_key, action)" +
+                            " select " + ChangeJournal.OBJECT_ITEM + ", item_key, "
+                            + ChangeJournal.ACTION_UPDATE + " from items" +
+                            " where dirty > " + APIRequest.API_CLEAN + " order by _id");
+                    db.execSQL("insert into changes (object_type, object_key, action)" +
+                            " select " + ChangeJournal.OBJECT_ATTACHMENT + ", attachment_key, "
+                            + ChangeJournal.ACTION_UPDATE + " from attachments" +
+                            " where dirty > " + APIRequest.API_CLEAN + " order by _id");
+                    db.execSQL("drop table deleteditems");
+                }
+                if (oldVersion < 29) {
+                    // With no library version stored, the next sync compares everything
+                    db.execSQL(SYNCSTATE_CREATE);
+                }
+                if (oldVersion < 30) {
+                    db.execSQL(HTTPCACHE_CREATE);
+                }
+                if (oldVersion < 31) {
+                    // Object versions, for the preconditions of writes; the
+                    // items table already has them if it was rebuilt above
+                    if (oldVersion >= 26)
+                        db.execSQL("alter table items add column version int not null default 0");
+                    db.execSQL("alter table attachments add column version int not null default 0");
+                }
             }
         }
     }
@@ -6,8 +6,20 @@ import com.gimranov.zandy.app.Query
 object DatabaseAccess {
     val TAG = this.javaClass.simpleName
 
+    /**
+     * Last name of an item's first creator, for sorting by creator
+     */
+    const val FIRST_CREATOR = "(SELECT lastName FROM itemtocreators, creators" +
+            " WHERE creators._id = creator_id AND itemtocreators.item_id = items._id" +
+            " ORDER BY itemtocreators.position LIMIT 1)"
+
+    /**
+     * Database.LISTCOLS, qualified for queries that join other tables
+     */
+    private val LIST_COLUMNS = Database.LISTCOLS.joinToString(", ") { "items.$it" }
+
     private val sortOptions = arrayOf("item_year, item_title COLLATE NOCASE",
-            "item_creator COLLATE NOCASE, item_year",
+            "$FIRST_CREATOR COLLATE NOCASE, item_year",
             "item_title COLLATE NOCASE, item_year",
             "timestamp ASC, item_title COLLATE NOCASE")
 
@@ -21,25 +33,67 @@ object DatabaseAccess {
         return db.query("collections", Database.COLLCOLS, "collection_parent=?", args, null, null, "collection_name", null)
     }
 
-    fun items(db: Database, parent: ItemCollection?, sortRule: String?): Cursor? {
+    fun items(db: Database, parent: ItemCollection?, sortRule: String?): ItemListCursor? {
         val sortClause = sortRule ?: sortOptions[0]
 
         when (parent) {
             null -> Query().query(db)
             else -> {
                 val args = arrayOf(parent.dbId)
-                return db.rawQuery("SELECT item_title, item_type, item_content, etag, dirty, items._id, item_key, item_year, item_creator, timestamp, item_children  FROM items, itemtocollections WHERE items._id = item_id AND collection_id=? ORDER BY $sortClause",
-                        args)
+                return ItemListCursor.of(db.rawQuery("SELECT $LIST_COLUMNS FROM items, itemtocollections WHERE items._id = item_id AND collection_id=? ORDER BY $sortClause",
+                        args))
             }
         }
         return Query().query(db)
     }
 
-    fun items(db: Database, query: String, sortRule: String?): Cursor? {
+    fun items(db: Database, query: String, sortRule: String?): ItemListCursor? {
+        val sortClause = sortRule ?: sortOptions[0]
+
+        val match = ItemSearchIndex.matchExpression(query) ?: return items(db, null as ItemCollection?, sortRule)
+
+        // offsets() has four numbers per matching term, so counting its spaces ranks
+        // the rows by how many hits they have; ties fall back to the usual sort.
+        val args = arrayOf(match)
+        return ItemListCursor.of(db.rawQuery("SELECT $LIST_COLUMNS" +
+                " FROM items, (SELECT docid, offsets(itemsearch) AS hits FROM itemsearch WHERE itemsearch MATCH ?) AS found" +
+                " WHERE items._id = found.docid" +
+                " ORDER BY length(hits) - length(replace(hits, ' ', '')) DESC, $sortClause",
+                args))
+    }
+
+    /**
+     * All tags in the library, with the number of items that have each one
+     */
+    fun tags(db: Database): Cursor? {
+        return db.query("tags", Database.TAGCOLS, null, null, null, null, "tag COLLATE NOCASE", null)
+    }
+
+    fun itemsForTag(db: Database, tag: String, sortRule: String?): ItemListCursor? {
+        val sortClause = sortRule ?: sortOptions[0]
+
+        val args = arrayOf(tag)
+        return ItemListCursor.of(db.rawQuery("SELECT $LIST_COLUMNS" +
+                " FROM items, itemtotags, tags WHERE items._id = item_id AND tags._id = tag_id AND tag=? ORDER BY $sortClause",
+                args))
+    }
+
+    /**
+     * All creators in the library, by last name, with the number of items each one is on
+     */
+    fun creators(db: Database): Cursor? {
+        return db.rawQuery("SELECT creators._id, name, firstName, lastName, count(DISTINCT item_id) AS item_count" +
+                " FROM creators, itemtocreators WHERE creators._id = creator_id" +
+                " GROUP BY creators._id ORDER BY lastName COLLATE NOCASE, firstName COLLATE NOCASE, name COLLATE NOCASE",
+                arrayOf())
+    }
+
+    fun itemsForCreator(db: Database, creatorId: String, sortRule: String?): ItemListCursor? {
         val sortClause = sortRule ?: sortOptions[0]
 
-        val args = arrayOf("%$query%", "%$query%")
-        return db.rawQuery("SELECT item_title, item_type, item_content, etag, dirty, _id, item_key, item_year, item_creator, timestamp, item_children  FROM items WHERE item_title LIKE ? OR item_creator LIKE ? ORDER BY $sortClause",
-                args)
+        val args = arrayOf(creatorId)
+        return ItemListCursor.of(db.rawQuery("SELECT $LIST_COLUMNS" +
+                " FROM items WHERE items._id IN (SELECT item_id FROM itemtocreators WHERE creator_id=?) ORDER BY $sortClause",
+                args))
     }
-}
\ No newline at end of file
+}
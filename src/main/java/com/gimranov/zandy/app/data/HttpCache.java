@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Validators (ETag, Last-Modified) of the feeds we have parsed, kept in the
+ * httpcache table so that the next request for a feed can be conditional. A
+ * 304 then stands for the content already in the database, so entries are
+ * only stored once their response has been parsed and saved.
+ * <p>
+ * URLs are stored without the API key.
+ */
+public final class HttpCache {
+    private static final String TAG = HttpCache.class.getSimpleName();
+
+    private HttpCache() {
+    }
+
+    /**
+     * What we know of one URL
+     */
+    public static class Entry {
+        public final String etag;
+        public final String lastModified;
+        /**
+         * The continuation link of the feed page, if it had one
+         */
+        public final String next;
+
+        public Entry(String etag, String lastModified, String next) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.next = next;
+        }
+    }
+
+    /**
+     * @return The stored entry, or null if we have none for the URL
+     */
+    public static Entry get(Database db, String url) {
+        String[] args = {strip(url)};
+        Cursor cur = db.rawQuery("select etag, last_modified, next from httpcache where url=?", args);
+        if (cur == null) return null;
+        Entry entry = new Entry(cur.getString(0), cur.getString(1), cur.getString(2));
+        cur.close();
+        return entry;
+    }
+
+    /**
+     * Stores the entry for the URL, or forgets the URL if the entry has no
+     * validators
+     */
+    public static void put(Database db, String url, Entry entry) {
+        if (entry.etag == null && entry.lastModified == null) {
+            remove(db, url);
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement("insert or replace into httpcache" +
+                " (url, etag, last_modified, next) values (?, ?, ?, ?)");
+        insert.bindString(1, strip(url));
+        bindNullable(insert, 2, entry.etag);
+        bindNullable(insert, 3, entry.lastModified);
+        bindNullable(insert, 4, entry.next);
+        insert.executeInsert();
+        insert.close();
+        Log.d(TAG, "Stored validators for " + strip(url));
+    }
+
+    public static void remove(Database db, String url) {
+        String[] args = {strip(url)};
+        db.rawQuery("delete from httpcache where url=?", args);
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) statement.bindNull(index);
+        else statement.bindString(index, value);
+    }
+
+    /**
+     * The URL without the API key, which isn't worth storing again
+     */
+    private static String strip(String url) {
+        return url.replaceAll("[?&]key=[^&]*", "");
+    }
+}
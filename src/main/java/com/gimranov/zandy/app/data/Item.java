@@ -27,6 +27,7 @@ import org.json.JSONObject;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -41,25 +42,70 @@ public class Item {
     private String owner;
     private String key;
     private String etag;
+
+    /**
+     * The object version from API version 2 and up, or 0 if we only have the
+     * etag; writes send it as their precondition
+     */
+    private int version;
     private String year;
     private String children;
 
     private String creatorSummary;
+
+    /**
+     * Parsed lazily from rawContent; use getContent() rather than reading
+     * this directly.
+     */
     private JSONObject content;
 
+    /**
+     * The content JSON as loaded from the database, kept until the content is
+     * replaced, so that an item that was never changed is saved back without
+     * serializing it again.
+     */
+    private String rawContent;
+
     public String dbId;
 
+    /**
+     * The key of the row as last loaded or saved, so that a save that changes
+     * the key drops the cached copy under the old one as well
+     */
+    private String storedKey;
+
     /**
      * Timestamp of last update from server
      */
     private String timestamp;
 
+    private static final String TAG = Item.class.getSimpleName();
+
     /**
-     * Queue of dirty items to be sent to the server
+     * Copies of the items loaded by key, invalidated by save and delete
      */
-    public static ArrayList<Item> queue = new ArrayList<Item>();
+    static final ObjectCache<Item> cache = new ObjectCache<Item>("Item", 500) {
+        @Override
+        Item copy(Item item) {
+            return item.copy();
+        }
+    };
 
-    private static final String TAG = Item.class.getSimpleName();
+    /**
+     * Statements used by save(..). SQLite caches the compiled form of each
+     * on the connection, so compiling them per save is cheap.
+     */
+    private static final String UPDATE_BY_ID = "update items set item_title=?, item_type=?," +
+            " item_year=?, item_creator=?, etag=?, dirty=?, timestamp=?," +
+            " item_children=?, item_key=?, version=? where _id=?";
+    private static final String UPDATE_BY_KEY = "update items set item_title=?, item_type=?," +
+            " item_year=?, item_creator=?, etag=?, dirty=?, timestamp=?," +
+            " item_children=?, item_key=?, version=? where item_key=?";
+    private static final String INSERT = "insert into items (item_title, item_type," +
+            " item_year, item_creator, etag, dirty, timestamp, item_children," +
+            " item_key, version) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SAVE_CONTENT = "insert or replace into itemcontent" +
+            " (_id, item_content) values (?, ?)";
 
     /**
      * The next two types are arrays of information on items that we need
@@ -89,7 +135,7 @@ public class Item {
      * Represents whether the item has been dirtied Dirty items have changes
      * that haven't been applied to the API
      */
-    public String dirty;
+    public int dirty;
 
     public Item() {
         content = new JSONObject();
@@ -114,12 +160,49 @@ public class Item {
         this.type = type;
     }
 
-    public boolean equals(Item b) {
-        if (b == null) return false;
-        Log.d(TAG, "Comparing myself (" + key + ") to " + b.key);
-        if (b.key == null || key == null) return false;
-        if (b.key.equals(key)) return true;
-        return false;
+    /**
+     * Items are equal when they are the same database row. The key can change
+     * when a new item is first synced, but the row ID never does; an item that
+     * hasn't been saved yet is only equal to itself, so save items before
+     * putting them in hashed collections.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Item)) return false;
+        Item b = (Item) o;
+        if (b.dbId == null || dbId == null) return false;
+        return b.dbId.equals(dbId);
+    }
+
+    @Override
+    public int hashCode() {
+        return dbId == null ? System.identityHashCode(this) : dbId.hashCode();
+    }
+
+    /**
+     * @return A copy sharing no mutable state with this item. The content is
+     * carried over as its JSON string, and parsed again only if asked for.
+     */
+    Item copy() {
+        Item c = new Item();
+        c.id = id;
+        c.title = title;
+        c.type = type;
+        c.owner = owner;
+        c.key = key;
+        c.etag = etag;
+        c.version = version;
+        c.year = year;
+        c.children = children;
+        c.creatorSummary = creatorSummary;
+        c.content = null;
+        c.rawContent = getContentString();
+        c.dbId = dbId;
+        c.storedKey = storedKey;
+        c.timestamp = timestamp;
+        c.dirty = dirty;
+        return c;
     }
 
     public String getId() {
@@ -133,12 +216,13 @@ public class Item {
     public void setTitle(String title) {
         if (title == null) title = "";
         if (!this.title.equals(title)) {
-            this.content.remove("title");
+            JSONObject content = getContent();
+            content.remove("title");
 
             try {
-                this.content.put("title", title);
+                content.put("title", title);
                 this.title = title;
-                if (!APIRequest.API_CLEAN.equals(this.dirty))
+                if (this.dirty != APIRequest.API_CLEAN)
                     this.dirty = APIRequest.API_DIRTY;
             } catch (JSONException e) {
                 Log.e(TAG, "Exception setting title", e);
@@ -182,24 +266,50 @@ public class Item {
         return key;
     }
 
+    /**
+     * Returns the content JSON, parsing it on first access for items loaded
+     * from the database. Callers may modify the returned object.
+     */
     public JSONObject getContent() {
+        if (content == null) {
+            String raw = rawContent;
+            try {
+                content = raw == null ? new JSONObject() : new JSONObject(raw);
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON error loading item content", e);
+                content = new JSONObject();
+            }
+            // The parsed object may be changed from here on
+            rawContent = null;
+        }
         return content;
     }
 
+    /**
+     * The content as it should be written to the database
+     */
+    String getContentString() {
+        String raw = rawContent;
+        if (raw != null) return raw;
+        return getContent().toString();
+    }
+
     public void setContent(JSONObject content) {
-        if (!this.content.toString().equals(content.toString())) {
-            if (!APIRequest.API_CLEAN.equals(this.dirty))
+        if (!getContentString().equals(content.toString())) {
+            if (this.dirty != APIRequest.API_CLEAN)
                 this.dirty = APIRequest.API_DIRTY;
             this.content = content;
+            this.rawContent = null;
         }
     }
 
     public void setContent(String content) throws JSONException {
         JSONObject con = new JSONObject(content);
         if (this.content != con) {
-            if (!APIRequest.API_CLEAN.equals(this.dirty))
+            if (this.dirty != APIRequest.API_CLEAN)
                 this.dirty = APIRequest.API_DIRTY;
             this.content = con;
+            this.rawContent = null;
         }
     }
 
@@ -223,6 +333,14 @@ public class Item {
         return etag;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     public String getYear() {
         return year;
     }
@@ -253,7 +371,7 @@ public class Item {
      * activities
      */
     public ArrayList<Bundle> toBundleArray(Database db) {
-        JSONObject itemContent = this.content;
+        JSONObject itemContent = getContent();
         /*
          * Here we walk through the data and make Bundles to send to the
 		 * ArrayAdapter. There should be no real risk of JSON exceptions, since
@@ -362,7 +480,7 @@ public class Item {
      * with TagActivity, but who knows?
      */
     public ArrayList<Bundle> tagsToBundleArray() {
-        JSONObject itemContent = this.content;
+        JSONObject itemContent = getContent();
 		/*
 		 * Here we walk through the data and make Bundles to send to the
 		 * ArrayAdapter. There should be no real risk of JSON exceptions, since
@@ -405,7 +523,7 @@ public class Item {
      * use with CreatorActivity, but who knows?
      */
     public ArrayList<Bundle> creatorsToBundleArray() {
-        JSONObject itemContent = this.content;
+        JSONObject itemContent = getContent();
 		/*
 		 * Here we walk through the data and make Bundles to send to the
 		 * ArrayAdapter. There should be no real risk of JSON exceptions, since
@@ -460,55 +578,164 @@ public class Item {
 
     /**
      * Saves the item's current state. Marking dirty should happen before this
+     * <p>
+     * The item row and the tables indexing it are written in one transaction.
+     * We update by database ID when we have one and by key otherwise, and only
+     * insert when neither matches, so the row is written with a single statement
+     * in the common cases.
+     * <p>
+     * Items that aren't clean are recorded in the change journal as well.
      */
     public void save(Database db) {
-        Item existing = load(key, db);
-        if (dbId == null && existing == null) {
-            String[] args = {title, key, type, year, creatorSummary,
-                    content.toString(), etag, dirty, timestamp, children};
-            Cursor cur = db
-                    .rawQuery(
-                            "insert into items (item_title, item_key, item_type, item_year, item_creator, item_content, etag, dirty, timestamp, item_children) "
-                                    + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                            args);
-            if (cur != null)
-                cur.close();
-            Item fromDB = load(key, db);
-            dbId = fromDB.dbId;
-        } else {
-            if (dbId == null)
-                dbId = existing.dbId;
-            String[] args = {title, type, year, creatorSummary,
-                    content.toString(), etag, dirty, timestamp, key, children, dbId};
-            Log.i(TAG, "Updating existing item");
-            Cursor cur = db
-                    .rawQuery(
-                            "update items set item_title=?, item_type=?, item_year=?," +
-                                    " item_creator=?, item_content=?, etag=?, dirty=?," +
-                                    " timestamp=?, item_key=?, item_children=? "
-                                    + " where _id=?", args);
-            if (cur != null)
-                cur.close();
+        save(db, null);
+    }
+
+    /**
+     * Saves the item, recording the specified field as the one that changed
+     * if the item isn't clean.
+     */
+    void save(Database db, String field) {
+        db.beginTransaction();
+        try {
+            if (dbId != null) {
+                SQLiteStatement update = db.compileStatement(UPDATE_BY_ID);
+                bindForSave(update);
+                update.bindString(11, dbId);
+                if (update.executeUpdateDelete() == 0) {
+                    Log.d(TAG, "No row for item with dbId " + dbId + ", saving by key");
+                    dbId = null;
+                }
+                update.close();
+            }
+
+            if (dbId == null) {
+                SQLiteStatement update = db.compileStatement(UPDATE_BY_KEY);
+                bindForSave(update);
+                update.bindString(11, key);
+                int updated = update.executeUpdateDelete();
+                update.close();
+
+                if (updated > 0) {
+                    Log.i(TAG, "Updating existing item");
+                    SQLiteStatement lookup = db.compileStatement("select _id from items where item_key=?");
+                    lookup.bindString(1, key);
+                    dbId = Long.toString(lookup.simpleQueryForLong());
+                    lookup.close();
+                } else {
+                    SQLiteStatement insert = db.compileStatement(INSERT);
+                    bindForSave(insert);
+                    dbId = Long.toString(insert.executeInsert());
+                    insert.close();
+                }
+            }
+
+            // Content that was loaded and never touched is already stored and
+            // indexed, and so is content that comes back from the server as it was
+            if (rawContent == null) {
+                String contentString = getContentString();
+                if (!contentString.equals(storedContent(db))) {
+                    SQLiteStatement saveContent = db.compileStatement(SAVE_CONTENT);
+                    saveContent.bindString(1, dbId);
+                    saveContent.bindString(2, contentString);
+                    saveContent.executeInsert();
+                    saveContent.close();
+
+                    // Parsed once, for all of the indexes
+                    JSONObject content = getContent();
+                    ItemSearchIndex.index(this, content, db);
+                    ItemFields.index(this, content, db);
+                    ItemTags.index(this, content, db);
+                    ItemCreators.index(this, content, db);
+                }
+            }
+            if (dirty != APIRequest.API_CLEAN) {
+                ChangeJournal.record(db, ChangeJournal.OBJECT_ITEM, key,
+                        ChangeJournal.ACTION_UPDATE, field, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.invalidate(key);
+            if (storedKey != null && !storedKey.equals(key)) cache.invalidate(storedKey);
+            storedKey = key;
         }
     }
 
     /**
-     * Deletes an item from the database, keeping a record of it in the deleteditems table
-     * We will then send out delete requests via the API to propagate the deletion
+     * @return The content JSON stored for this item's row, or null
      */
-    public void delete(Database db) {
+    private String storedContent(Database db) {
         String[] args = {dbId};
-        db.rawQuery("delete from items where _id=?", args);
-        db.rawQuery("delete from itemtocreators where item_id=?", args);
-        db.rawQuery("delete from itemtocollections where item_id=?", args);
-        ArrayList<Attachment> atts = Attachment.forItem(this, db);
-        for (Attachment a : atts) {
-            a.delete(db);
+        Cursor cur = db.rawQuery("select item_content from itemcontent where _id=?", args);
+        if (cur == null) return null;
+        String stored = cur.getString(0);
+        cur.close();
+        return stored;
+    }
+
+    /**
+     * Binds the first ten parameters of the save statements, which all list
+     * the columns in the same order
+     */
+    private void bindForSave(SQLiteStatement statement) {
+        String[] values = {title, type, year, creatorSummary,
+                etag, null, timestamp, children, key};
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) statement.bindNull(i + 1);
+            else statement.bindString(i + 1, values[i]);
         }
-        // Don't prepare deletion requests for unsynced new items
-        if (!APIRequest.API_NEW.equals(dirty)) {
-            String[] args2 = {key, etag};
-            db.rawQuery("insert into deleteditems (item_key, etag) values (?, ?)", args2);
+        // The sixth column is dirty and the tenth the version, the only ones
+        // that aren't strings
+        statement.bindLong(6, dirty);
+        statement.bindLong(10, version);
+    }
+
+    /**
+     * Deletes an item from the database, keeping a record of it in the change journal
+     * We will then send out delete requests via the API to propagate the deletion
+     */
+    public void delete(Database db) {
+        delete(db, false);
+    }
+
+    /**
+     * Deletes an item and its attachments from the database. When fromAPI is
+     * not true, records the deletion in the change journal as well.
+     *
+     * @param fromAPI True for items that the server has already deleted
+     */
+    public void delete(Database db, boolean fromAPI) {
+        db.beginTransaction();
+        try {
+            String[] args = {dbId};
+            db.rawQuery("delete from items where _id=?", args);
+            db.rawQuery("delete from itemcontent where _id=?", args);
+            // The collections lose a member each, in the same transaction
+            SQLiteStatement shrink = db.compileStatement("update collections" +
+                    " set collection_size = collection_size - 1" +
+                    " where _id in (select collection_id from itemtocollections where item_id=?)");
+            shrink.bindString(1, dbId);
+            int collections = shrink.executeUpdateDelete();
+            shrink.close();
+            db.rawQuery("delete from itemtocollections where item_id=?", args);
+            if (collections > 0) ItemCollection.cache.clear();
+            ItemSearchIndex.remove(this, db);
+            ItemFields.remove(this, db);
+            ItemTags.remove(this, db);
+            ItemCreators.remove(this, db);
+            ArrayList<Attachment> atts = Attachment.forItem(this, db);
+            for (Attachment a : atts) {
+                a.delete(db, fromAPI);
+            }
+            // Don't prepare deletion requests for unsynced new items
+            if (!fromAPI && dirty != APIRequest.API_NEW) {
+                ChangeJournal.record(db, ChangeJournal.OBJECT_ITEM, key,
+                        ChangeJournal.ACTION_DELETE, null, etag);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.invalidate(key);
         }
     }
 
@@ -520,13 +747,17 @@ public class Item {
      * @return
      */
     public static Item load(String itemKey, Database db) {
+        Item cached = cache.get(itemKey);
+        if (cached != null) return cached;
+
         String[] cols = Database.ITEMCOLS;
         String[] args = {itemKey};
-        Cursor cur = db.query("items", cols, "item_key=?", args, null, null,
+        Cursor cur = db.query(Database.ITEMS_WITH_CONTENT, cols, "item_key=?", args, null, null,
                 null, null);
         Item item = load(cur);
         if (cur != null)
             cur.close();
+        cache.put(itemKey, item);
         return item;
     }
 
@@ -540,7 +771,7 @@ public class Item {
     public static Item loadDbId(String itemDbId, Database db) {
         String[] cols = Database.ITEMCOLS;
         String[] args = {itemDbId};
-        Cursor cur = db.query("items", cols, "_id=?", args, null, null,
+        Cursor cur = db.query(Database.ITEMS_WITH_CONTENT, cols, "_id=?", args, null, null,
                 null, null);
         Item item = load(cur);
         if (cur != null)
@@ -564,17 +795,16 @@ public class Item {
             return null;
         }
         // {"item_title", "item_type", "item_content", "etag", "dirty", "_id",
-        // "item_key", "item_year", "item_creator", "timestamp", "item_children"};
+        // "item_key", "item_year", "item_creator", "timestamp", "item_children", "version"};
 
-        item.setTitle(cur.getString(0));
+        // The title is in the content already, and the content is only
+        // parsed once someone asks for it
+        item.title = cur.getString(0) == null ? "" : cur.getString(0);
         item.setType(cur.getString(1));
-        try {
-            item.setContent(cur.getString(2));
-        } catch (JSONException e) {
-            Log.e(TAG, "JSON error loading item", e);
-        }
+        item.content = null;
+        item.rawContent = cur.getString(2);
         item.setEtag(cur.getString(3));
-        item.dirty = cur.getString(4);
+        item.dirty = cur.getInt(4);
         item.dbId = cur.getString(5);
         item.setKey(cur.getString(6));
         item.setYear(cur.getString(7));
@@ -582,6 +812,8 @@ public class Item {
         item.setTimestamp(cur.getString(9));
         item.children = cur.getString(10);
         if (item.children == null) item.children = "";
+        item.version = cur.getInt(11);
+        item.storedKey = item.key;
         return item;
     }
 
@@ -611,15 +843,14 @@ public class Item {
         }
 
         try {
-            item.content.put(label, content);
+            item.getContent().put(label, content);
         } catch (JSONException e) {
             Log
                     .e(TAG,
                             "Caught JSON exception when we tried to modify the JSON content");
         }
         item.dirty = APIRequest.API_DIRTY;
-        item.save(db);
-        item = load(itemKey, db);
+        item.save(db, label);
     }
 
     /**
@@ -637,7 +868,7 @@ public class Item {
         Item item = load(itemKey, db);
 
         try {
-            JSONArray tags = item.content.getJSONArray("tags");
+            JSONArray tags = item.getContent().getJSONArray("tags");
             JSONArray newTags = new JSONArray();
             Log.d(TAG, "Old: " + tags.toString());
             // Allow adding a new tag
@@ -659,12 +890,12 @@ public class Item {
                     }
                 }
             }
-            item.content.put("tags", newTags);
+            item.getContent().put("tags", newTags);
         } catch (JSONException e) {
             Log.e(TAG, "Caught JSON exception when we tried to modify the JSON content", e);
         }
         item.dirty = APIRequest.API_DIRTY;
-        item.save(db);
+        item.save(db, "tags");
     }
 
     /**
@@ -681,7 +912,7 @@ public class Item {
 
 
         try {
-            JSONArray creators = item.content.getJSONArray("creators");
+            JSONArray creators = item.getContent().getJSONArray("creators");
             JSONArray newCreators = new JSONArray();
             Log.d(TAG, "Old: " + creators.toString());
             // Allow adding a new tag
@@ -705,40 +936,13 @@ public class Item {
                 sb.append(((JSONObject) creators.get(j)).optString("lastName", ""));
             }
             item.creatorSummary = sb.toString();
-            item.content.put("creators", newCreators);
+            item.getContent().put("creators", newCreators);
             Log.d(TAG, "New: " + newCreators.toString());
         } catch (JSONException e) {
             Log.e(TAG, "Caught JSON exception when we tried to modify the JSON content");
         }
         item.dirty = APIRequest.API_DIRTY;
-        item.save(db);
-    }
-
-    /**
-     * Identifies dirty items in the database and queues them for syncing
-     */
-    public static void queue(Database db) {
-        Log.d(TAG, "Clearing item dirty queue before repopulation");
-        queue.clear();
-        Item item;
-        String[] cols = Database.ITEMCOLS;
-        String[] args = {APIRequest.API_CLEAN};
-        Cursor cur = db.query("items", cols, "dirty!=?", args, null, null,
-                null, null);
-
-        if (cur == null) {
-            Log.d(TAG, "No dirty items found in database");
-            queue.clear();
-            return;
-        }
-
-        do {
-            Log.d(TAG, "Adding item to dirty queue");
-            item = load(cur);
-            queue.add(item);
-        } while (cur.moveToNext());
-
-        cur.close();
+        item.save(db, "creators");
     }
 
     /**
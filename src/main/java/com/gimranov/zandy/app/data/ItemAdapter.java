@@ -29,7 +29,8 @@ import android.widget.TextView;
 import com.gimranov.zandy.app.R;
 
 /**
- * Exposes items to be displayed by a ListView
+ * Exposes items to be displayed by a ListView. The cursor should be an
+ * ItemListCursor, as returned by DatabaseAccess and Query.
  *
  * @author ajlyon
  */
@@ -60,17 +61,14 @@ public class ItemAdapter extends ResourceCursorAdapter {
 
         if (cursor == null) {
             Log.e(TAG, "cursor is null in bindView");
+            return;
         }
-        Item item = Item.load(cursor);
+        ItemListCursor item = ItemListCursor.of(cursor);
 
-        if (item == null) {
-            Log.e(TAG, "item is null in bindView");
-        }
         if (tvTitle == null) {
             Log.e(TAG, "tvTitle is null in bindView");
         }
 
-        Log.d(TAG, "setting image for item (" + item.getKey() + ") of type: " + item.getType());
         tvType.setImageResource(Item.resourceForType(item.getType()));
 
         tvSummary.setText(item.getCreatorSummary() + " (" + item.getYear() + ")");
@@ -18,6 +18,7 @@ package com.gimranov.zandy.app.data;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Objects;
 
 import android.database.Cursor;
@@ -46,6 +47,17 @@ public class ItemCollection extends HashSet<Item> {
 
     public static final String TAG = ItemCollection.class.getSimpleName();
 
+    /**
+     * Copies of the collections loaded by key, without their members. A save
+     * caches the row as written, so the next load of the key is still a hit.
+     */
+    static final ObjectCache<ItemCollection> cache = new ObjectCache<ItemCollection>("Collection", 100) {
+        @Override
+        ItemCollection copy(ItemCollection collection) {
+            return collection.copy();
+        }
+    };
+
     private String id;
     private String title;
     private String key;
@@ -60,20 +72,31 @@ public class ItemCollection extends HashSet<Item> {
     private ArrayList<ItemCollection> subcollections;
 
     /**
-     * This is an approximate size that we have from the database-- it may be outdated
-     * at times, but it's often better than wading through the database and figuring out
-     * the size that way.
-     * <p>
-     * This size is updated only when loading children;
+     * The number of memberships in the database. This is adjusted by the
+     * memberships that saveChildren(..) and remove(..) actually add and remove,
+     * so it doesn't need to be recounted. The stored collection_size is only
+     * changed by adjustSize(..), in the transaction that changes the memberships.
      */
     private int size;
 
+    /**
+     * Items added since the collection was loaded or its children were last
+     * saved, which saveChildren(..) still has to write.
+     */
+    private final LinkedHashSet<Item> added = new LinkedHashSet<>();
+
     private ItemCollection parent;
     private String parentKey;
 
     public String dbId;
 
-    public String dirty;
+    /**
+     * The key of the row as last loaded or saved, so that a save that changes
+     * the key drops the cached copy under the old one as well
+     */
+    private String storedKey;
+
+    public int dirty;
 
     /**
      * Timestamp of last update from server; this is an Atom-formatted
@@ -89,25 +112,57 @@ public class ItemCollection extends HashSet<Item> {
     public ItemCollection() {
     }
 
+    /**
+     * @return A copy of the collection's own fields, without its members,
+     * subcollections or pending additions
+     */
+    ItemCollection copy() {
+        ItemCollection c = new ItemCollection();
+        c.id = id;
+        c.title = title;
+        c.key = key;
+        c.etag = etag;
+        c.size = size;
+        c.parentKey = parentKey;
+        c.dbId = dbId;
+        c.storedKey = storedKey;
+        c.dirty = dirty;
+        c.timestamp = timestamp;
+        return c;
+    }
+
     /**
      * We call void remove(Item) to allow for queueing
      * the action for application on the server, via the API.
      * <p>
-     * When fromAPI is not true, queues a collection membership
-     * request for the server as well.
+     * When fromAPI is not true, records the membership change in the
+     * change journal as well.
      *
      * @param item
      * @param fromAPI False for collection memberships we receive from the server
      * @param db
      */
     public void remove(Item item, boolean fromAPI, Database db) {
-        String[] args = {dbId, item.dbId};
-        db.rawQuery("delete from itemtocollections where collection_id=? and item_id=?", args);
+        added.remove(item);
+        db.beginTransaction();
+        try {
+            if (dbId != null && item.dbId != null) {
+                SQLiteStatement delete = db.compileStatement(
+                        "delete from itemtocollections where collection_id=? and item_id=?");
+                delete.bindString(1, dbId);
+                delete.bindString(2, item.dbId);
+                int deleted = delete.executeUpdateDelete();
+                delete.close();
+                if (deleted > 0) adjustSize(-deleted, db);
+            }
 
-        if (!fromAPI) {
-            APIRequest req = APIRequest.remove(item, this);
-            req.status = APIRequest.REQ_NEW;
-            req.save(db);
+            if (!fromAPI) {
+                ChangeJournal.record(db, ChangeJournal.OBJECT_ITEM, item.getKey(),
+                        ChangeJournal.ACTION_MEMBERSHIP_REMOVE, null, key);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
         super.remove(item);
     }
@@ -187,8 +242,8 @@ public class ItemCollection extends HashSet<Item> {
     }
 
     /**
-     * Marks the collection as clean and clears the pending additions and
-     * removals.
+     * Marks the collection as clean. Pending additions are kept, and are
+     * written by the next saveChildren(..).
      * <p>
      * Note that dirty markings don't matter until saved to the DB, so
      * this should be followed by a save.
@@ -201,11 +256,27 @@ public class ItemCollection extends HashSet<Item> {
         return add(item, false, db);
     }
 
+    /**
+     * Adds the item without queueing a membership request; the membership is
+     * written on the next saveChildren(..). Items are hashed by their database
+     * ID, so items that haven't been saved yet are refused.
+     */
+    @Override
+    public boolean add(Item item) {
+        if (item.dbId == null) {
+            Log.e(TAG, "Can't add an unsaved item to a collection: " + item.getKey());
+            return false;
+        }
+        if (!super.add(item)) return false;
+        added.add(item);
+        return true;
+    }
+
     /**
      * Adds the specified item to this collection.
      * <p>
-     * When fromAPI is not true, queues a collection membership
-     * request for the server as well.
+     * When fromAPI is not true, records the membership change in the
+     * change journal as well.
      *
      * @param item
      * @param fromAPI False for collection memberships we receive from the server
@@ -213,20 +284,19 @@ public class ItemCollection extends HashSet<Item> {
      * @return Whether this is a new item for the collection
      */
     public boolean add(Item item, boolean fromAPI, Database db) {
-        for (Item i : this) {
-            if (i.equals(item)) {
-                Log.d(TAG, "Item already in collection");
-                return false;
-            }
+        // Saved first, so the item has the row ID it's hashed by
+        if (item.dbId == null) item.save(db);
+        if (!super.add(item)) {
+            Log.d(TAG, "Item already in collection");
+            return false;
         }
 
-        super.add(item);
+        added.add(item);
         Log.d(TAG, "Item added to collection");
         if (!fromAPI) {
-            Log.d(TAG, "Saving new collection membership request to database");
-            APIRequest req = APIRequest.add(item, this);
-            req.status = APIRequest.REQ_NEW;
-            req.save(db);
+            Log.d(TAG, "Recording new collection membership in the change journal");
+            ChangeJournal.record(db, ChangeJournal.OBJECT_ITEM, item.getKey(),
+                    ChangeJournal.ACTION_MEMBERSHIP_ADD, null, key);
         }
         return true;
     }
@@ -237,9 +307,10 @@ public class ItemCollection extends HashSet<Item> {
      */
     public ArrayList<Item> notInKeys(ArrayList<String> keys) {
         ArrayList<Item> notThere = new ArrayList<Item>();
+        HashSet<String> keySet = new HashSet<>(keys);
 
         for (Item i : this) {
-            if (!keys.contains(i.getKey()))
+            if (!keySet.contains(i.getKey()))
                 notThere.add(i);
         }
 
@@ -266,8 +337,7 @@ public class ItemCollection extends HashSet<Item> {
                 else insert.bindString(3, parentKey);
                 if (etag == null) insert.bindNull(4);
                 else insert.bindString(4, etag);
-                if (dirty == null) insert.bindNull(5);
-                else insert.bindString(5, dirty);
+                insert.bindLong(5, dirty);
                 insert.bindLong(6, size);
                 if (timestamp == null) insert.bindNull(7);
                 else insert.bindString(7, timestamp);
@@ -290,82 +360,87 @@ public class ItemCollection extends HashSet<Item> {
             dbId = existing.dbId;
             try {
                 SQLiteStatement update = db.compileStatement("update collections set " +
-                        "collection_name=?, etag=?, dirty=?, collection_size=?, timestamp=?" +
+                        "collection_name=?, etag=?, dirty=?, timestamp=?" +
                         " where _id=?");
                 update.bindString(1, title);
                 if (etag == null) update.bindNull(2);
                 else update.bindString(2, etag);
-                if (dirty == null) update.bindNull(3);
-                else update.bindString(3, dirty);
-                update.bindLong(4, size);
-                if (timestamp == null) update.bindNull(5);
-                else update.bindString(5, timestamp);
-                update.bindString(6, dbId);
+                update.bindLong(3, dirty);
+                if (timestamp == null) update.bindNull(4);
+                else update.bindString(4, timestamp);
+                update.bindString(5, dbId);
                 update.executeInsert();
                 update.clearBindings();
                 update.close();
                 Log.i(TAG, "Updating existing collection.");
+                // The row as it now is; the parent and size aren't written here
+                existing.title = title;
+                existing.etag = etag;
+                existing.dirty = dirty;
+                existing.timestamp = timestamp;
+                cache.put(key, existing);
             } catch (SQLiteException e) {
                 Log.e(TAG, "Exception compiling or running update statement", e);
+                cache.invalidate(key);
             }
         }
+        if (storedKey != null && !storedKey.equals(key)) cache.invalidate(storedKey);
+        storedKey = key;
         db.close();
     }
 
     /**
      * Saves the item-collection relationship. This saves the collection
      * itself as well.
-     *
-     * @throws Exception If we can't save the collection or children
+     * <p>
+     * Only the memberships added since the collection was loaded are written,
+     * and the size is adjusted by the number that weren't already there.
+     * Removals are written as they happen, by remove(..).
      */
     public void saveChildren(Database db) {
-        /* The size is about to be the size of the internal ArrayList, so
-         * set it now so it'll be propagated to the database if the collection
-         * is new.
-         *
-         * Save it now-- to fix the size, and to make sure we have a database ID.
-         */
-
-        loadChildren(db);
-
-        Log.d(TAG, "Collection has dbid: " + dbId);
-
-        /* The saving is implemented by removing all the records for this collection
-         * and saving them anew. This is a risky way to do things. One approach is to
-         * wrap the operation in a transaction, or we could try to keep track of changes.
-         */
+        // Make sure we have a database ID
+        if (dbId == null) save(db);
 
-        HashSet<String> keys = new HashSet<>();
-        for (Item i : this) {
-            if (i.dbId == null) i.save(db);
-            keys.add(i.dbId);
-        }
+        Log.d(TAG, "Saving " + added.size() + " new memberships for collection with dbid: " + dbId);
 
         db.beginTransaction();
         try {
-            String[] cid = {this.dbId};
-            db.rawQuery("delete from itemtocollections where collection_id=?", cid);
-            for (String i : keys) {
-                String[] args = {this.dbId, i};
-                db.rawQuery(
-                        "insert into itemtocollections (collection_id, item_id) values (?, ?)", args);
+            if (!added.isEmpty()) {
+                SQLiteStatement insert = db.compileStatement("insert or ignore into itemtocollections" +
+                        " (collection_id, item_id) values (?, ?)");
+                int inserted = 0;
+                for (Item i : added) {
+                    insert.bindString(1, dbId);
+                    insert.bindString(2, i.dbId);
+                    // -1 means the membership was already there
+                    if (insert.executeInsert() != -1) inserted++;
+                }
+                insert.close();
+                if (inserted > 0) adjustSize(inserted, db);
             }
+            save(db);
             db.setTransactionSuccessful();
-        } catch (Exception e) {
-            Log.e(TAG, "Exception caught on saving collection children", e);
+            added.clear();
         } finally {
+            // A failure has to reach the caller: when this is nested in a
+            // transaction, ending it unsuccessfully rolls back the outer one too
             db.endTransaction();
         }
+    }
 
-        // We can now get a proper and total count
-        String[] args = {this.dbId};
-        Cursor cur = db.rawQuery(
-                "select count(distinct item_id) from itemtocollections where collection_id=?", args);
-        cur.moveToFirst();
-        if (!cur.isAfterLast()) this.size = cur.getInt(0);
-        cur.close();
-
-        save(db);
+    /**
+     * Changes the size by delta, here and in the stored collection_size. Call
+     * this in the transaction that adds or removes the memberships.
+     */
+    private void adjustSize(int delta, Database db) {
+        size += delta;
+        SQLiteStatement update = db.compileStatement(
+                "update collections set collection_size = collection_size + ? where _id=?");
+        update.bindLong(1, delta);
+        update.bindString(2, dbId);
+        update.executeUpdateDelete();
+        update.close();
+        cache.invalidate(key);
     }
 
     /**
@@ -376,16 +451,17 @@ public class ItemCollection extends HashSet<Item> {
         Log.d(TAG, "Looking for the kids of a collection with id: " + dbId);
 
         String[] args = {dbId};
-        Cursor cursor = db.rawQuery("SELECT item_title, item_type, item_content, etag, dirty, items._id, item_key, item_year, item_creator, items.timestamp, item_children" +
-                        " FROM items, itemtocollections WHERE items._id = item_id AND collection_id=? ORDER BY item_title",
+        Cursor cursor = db.rawQuery("SELECT item_title, item_type, item_content, etag, dirty, items._id, item_key, item_year, item_creator, items.timestamp, item_children, version" +
+                        " FROM items LEFT JOIN itemcontent ON itemcontent._id = items._id, itemtocollections" +
+                        " WHERE items._id = item_id AND collection_id=? ORDER BY item_title",
                 args);
         if (cursor != null) {
             cursor.moveToFirst();
             while (!cursor.isAfterLast()) {
                 Item i = Item.load(cursor);
                 Log.d(TAG, "Adding an item to the collection: " + (i != null ? i.getTitle() : null));
-                size = this.size();
-                super.add(i);
+                // Items are hashed by row ID, so members we already hold are skipped
+                if (i != null) super.add(i);
                 cursor.moveToNext();
             }
             cursor.close();
@@ -437,6 +513,9 @@ public class ItemCollection extends HashSet<Item> {
      */
     public static ItemCollection load(String collKey, Database db) {
         if (collKey == null) return null;
+        ItemCollection cached = cache.get(collKey);
+        if (cached != null) return cached;
+
         String[] cols = Database.COLLCOLS;
         String[] args = {collKey};
         Log.i(TAG, "Loading collection with key: " + collKey);
@@ -445,6 +524,7 @@ public class ItemCollection extends HashSet<Item> {
         ItemCollection coll = load(cur);
         if (coll == null) Log.i(TAG, "Null collection loaded!");
         if (cur != null) cur.close();
+        cache.put(collKey, coll);
         return coll;
     }
 
@@ -468,11 +548,12 @@ public class ItemCollection extends HashSet<Item> {
         coll.setTitle(cur.getString(0));
         coll.setParent(cur.getString(1));
         coll.etag = cur.getString(2);
-        coll.dirty = cur.getString(3);
+        coll.dirty = cur.getInt(3);
         coll.dbId = cur.getString(4);
         coll.setKey(cur.getString(5));
         coll.size = cur.getInt(6);
         coll.timestamp = cur.getString(7);
+        coll.storedKey = coll.key;
         return coll;
     }
 
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Maintains the creators and itemtocreators tables from the creators in each
+ * item's JSON content. Creators with the same name parts share one row.
+ * <p>
+ * This is called from Item.save, inside its transaction.
+ */
+final class ItemCreators {
+    private static final String TAG = ItemCreators.class.getSimpleName();
+
+    private ItemCreators() {
+    }
+
+    /**
+     * Brings the item's creator links in line with its content. Links are
+     * compared position by position, and only the ones that differ are
+     * replaced.
+     */
+    static void index(Item item, JSONObject content, Database db) {
+        if (item.dbId == null) {
+            Log.e(TAG, "Can't index creators of an item without a database ID: " + item.getKey());
+            return;
+        }
+
+        // name, firstName, lastName, creatorType for each position
+        ArrayList<String[]> creators = new ArrayList<>();
+        JSONArray creatorArray = content.optJSONArray("creators");
+        for (int i = 0; creatorArray != null && i < creatorArray.length(); i++) {
+            JSONObject creator = creatorArray.optJSONObject(i);
+            if (creator == null) continue;
+            creators.add(new String[]{creator.optString("name"),
+                    creator.optString("firstName"),
+                    creator.optString("lastName"),
+                    creator.optString("creatorType")});
+        }
+
+        HashSet<Integer> current = new HashSet<>();
+        ArrayList<String> staleLinks = new ArrayList<>();
+        HashSet<String> staleCreators = new HashSet<>();
+        String[] args = {item.dbId};
+        Cursor cur = db.rawQuery("select itemtocreators._id, creator_id, position, creatorType," +
+                " name, firstName, lastName from itemtocreators, creators" +
+                " where creators._id = creator_id and item_id=?", args);
+        if (cur != null) {
+            do {
+                int position = cur.getInt(2);
+                if (position < creators.size() && !current.contains(position)
+                        && matches(creators.get(position), cur)) {
+                    current.add(position);
+                } else {
+                    staleLinks.add(cur.getString(0));
+                    staleCreators.add(cur.getString(1));
+                }
+            } while (cur.moveToNext());
+            cur.close();
+        }
+
+        if (!staleLinks.isEmpty()) {
+            SQLiteStatement delete = db.compileStatement("delete from itemtocreators where _id=?");
+            for (String link : staleLinks) {
+                delete.bindString(1, link);
+                delete.executeUpdateDelete();
+            }
+            delete.close();
+            purge(staleCreators, db);
+        }
+
+        if (current.size() < creators.size()) {
+            SQLiteStatement insertCreator = db.compileStatement("insert or ignore into creators" +
+                    " (name, firstName, lastName) values (?, ?, ?)");
+            SQLiteStatement lookup = db.compileStatement("select _id from creators" +
+                    " where lastName=? and firstName=? and name=?");
+            SQLiteStatement insertLink = db.compileStatement("insert into itemtocreators" +
+                    " (creator_id, item_id, creatorType, position) values (?, ?, ?, ?)");
+            for (int i = 0; i < creators.size(); i++) {
+                if (current.contains(i)) continue;
+                String[] creator = creators.get(i);
+                insertCreator.bindString(1, creator[0]);
+                insertCreator.bindString(2, creator[1]);
+                insertCreator.bindString(3, creator[2]);
+                insertCreator.executeInsert();
+                lookup.bindString(1, creator[2]);
+                lookup.bindString(2, creator[1]);
+                lookup.bindString(3, creator[0]);
+                long creatorId = lookup.simpleQueryForLong();
+
+                insertLink.bindLong(1, creatorId);
+                insertLink.bindString(2, item.dbId);
+                insertLink.bindString(3, creator[3]);
+                insertLink.bindLong(4, i);
+                insertLink.executeInsert();
+            }
+            insertCreator.close();
+            lookup.close();
+            insertLink.close();
+        }
+    }
+
+    static void remove(Item item, Database db) {
+        if (item.dbId == null) return;
+        HashSet<String> creatorIds = new HashSet<>();
+        String[] args = {item.dbId};
+        Cursor cur = db.rawQuery("select creator_id from itemtocreators where item_id=?", args);
+        if (cur != null) {
+            do {
+                creatorIds.add(cur.getString(0));
+            } while (cur.moveToNext());
+            cur.close();
+        }
+        db.rawQuery("delete from itemtocreators where item_id=?", args);
+        purge(creatorIds, db);
+    }
+
+    /**
+     * Repopulates the tables from the items table; only needed when upgrading.
+     */
+    static void rebuild(Database db) {
+        Log.d(TAG, "Rebuilding creator tables");
+        db.rawQuery("delete from itemtocreators", new String[]{});
+        db.rawQuery("delete from creators", new String[]{});
+
+        Cursor cur = db.query(Database.ITEMS_WITH_CONTENT, Database.ITEMCOLS, null, null, null, null, null, null);
+        if (cur == null) return;
+        do {
+            Item item = Item.load(cur);
+            if (item != null) index(item, item.getContent(), db);
+        } while (cur.moveToNext());
+        cur.close();
+    }
+
+    private static boolean matches(String[] creator, Cursor cur) {
+        return creator[3].equals(cur.getString(3))
+                && creator[0].equals(cur.getString(4))
+                && creator[1].equals(cur.getString(5))
+                && creator[2].equals(cur.getString(6));
+    }
+
+    /**
+     * Drops the given creators if no item links to them anymore
+     */
+    private static void purge(HashSet<String> creatorIds, Database db) {
+        SQLiteStatement delete = db.compileStatement("delete from creators where _id=?" +
+                " and not exists (select 1 from itemtocreators where creator_id=?)");
+        for (String id : creatorIds) {
+            delete.bindString(1, id);
+            delete.bindString(2, id);
+            delete.executeUpdateDelete();
+        }
+        delete.close();
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Maintains the itemfields table, which holds the scalar fields of each
+ * item's JSON content (publicationTitle, DOI, ISBN, date, ...) as rows, so that
+ * Query can filter on them using the (field, value) index.
+ */
+final class ItemFields {
+    private static final String TAG = ItemFields.class.getSimpleName();
+
+    private ItemFields() {
+    }
+
+    /**
+     * Brings the rows for the item in line with its content, touching only the
+     * fields that were added, changed or removed since the last save.
+     */
+    static void index(Item item, JSONObject content, Database db) {
+        if (item.dbId == null) {
+            Log.e(TAG, "Can't index fields of an item without a database ID: " + item.getKey());
+            return;
+        }
+
+        HashMap<String, String> fields = new HashMap<>();
+        Iterator<String> keys = content.keys();
+        while (keys.hasNext()) {
+            String field = keys.next();
+            Object value = content.opt(field);
+            if (value instanceof String && !"".equals(value))
+                fields.put(field, (String) value);
+        }
+
+        // Whatever is left in the map after this needs to be inserted
+        ArrayList<String> stale = new ArrayList<>();
+        String[] args = {item.dbId};
+        Cursor cur = db.rawQuery("select _id, field, value from itemfields where item_id=?", args);
+        if (cur != null) {
+            do {
+                String value = fields.get(cur.getString(1));
+                if (value != null && value.equals(cur.getString(2))) {
+                    fields.remove(cur.getString(1));
+                } else {
+                    stale.add(cur.getString(0));
+                }
+            } while (cur.moveToNext());
+            cur.close();
+        }
+
+        if (!stale.isEmpty()) {
+            SQLiteStatement delete = db.compileStatement("delete from itemfields where _id=?");
+            for (String id : stale) {
+                delete.bindString(1, id);
+                delete.executeUpdateDelete();
+            }
+            delete.close();
+        }
+
+        if (!fields.isEmpty()) {
+            SQLiteStatement insert = db.compileStatement("insert into itemfields " +
+                    "(item_id, field, value) values (?, ?, ?)");
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                insert.bindString(1, item.dbId);
+                insert.bindString(2, field.getKey());
+                insert.bindString(3, field.getValue());
+                insert.executeInsert();
+            }
+            insert.close();
+        }
+    }
+
+    static void remove(Item item, Database db) {
+        if (item.dbId == null) return;
+        String[] args = {item.dbId};
+        db.rawQuery("delete from itemfields where item_id=?", args);
+    }
+
+    /**
+     * Repopulates the table from the items table; only needed when upgrading.
+     */
+    static void rebuild(Database db) {
+        Log.d(TAG, "Rebuilding item field table");
+        db.rawQuery("delete from itemfields", new String[]{});
+
+        Cursor cur = db.query(Database.ITEMS_WITH_CONTENT, Database.ITEMCOLS, null, null, null, null, null, null);
+        if (cur == null) return;
+        do {
+            Item item = Item.load(cur);
+            if (item != null) index(item, item.getContent(), db);
+        } while (cur.moveToNext());
+        cur.close();
+    }
+}
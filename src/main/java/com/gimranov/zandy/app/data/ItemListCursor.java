@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Cursor over item list rows, selected with Database.LISTCOLS. These rows
+ * carry what a list shows and nothing else; in particular not the content
+ * JSON, so the cursor window holds many more rows per fill.
+ * <p>
+ * Use loadItem(..) to get the full item for the current row, for instance
+ * when the user opens it.
+ */
+public class ItemListCursor extends CursorWrapper {
+
+    public ItemListCursor(Cursor cursor) {
+        super(cursor);
+    }
+
+    /**
+     * Wraps the cursor, which must have been selected with Database.LISTCOLS,
+     * unless it is already an ItemListCursor.
+     *
+     * @return The wrapped cursor, or null if the cursor is null
+     */
+    public static ItemListCursor of(Cursor cursor) {
+        if (cursor == null) return null;
+        if (cursor instanceof ItemListCursor) return (ItemListCursor) cursor;
+        return new ItemListCursor(cursor);
+    }
+
+    // The getters follow the order of Database.LISTCOLS
+
+    public String getDbId() {
+        return getString(0);
+    }
+
+    public String getKey() {
+        return getString(1);
+    }
+
+    public String getTitle() {
+        String title = getString(2);
+        return title == null ? "" : title;
+    }
+
+    public String getType() {
+        return getString(3);
+    }
+
+    public String getCreatorSummary() {
+        return getString(4);
+    }
+
+    public String getYear() {
+        return getString(5);
+    }
+
+    public String getChildren() {
+        return getString(6);
+    }
+
+    public int getDirty() {
+        return getInt(7);
+    }
+
+    /**
+     * Loads the full item for the current row.
+     */
+    public Item loadItem(Database db) {
+        Item item = Item.load(getKey(), db);
+        // The key can change under us during a sync, but the database ID doesn't
+        if (item == null) item = Item.loadDbId(getDbId(), db);
+        return item;
+    }
+}
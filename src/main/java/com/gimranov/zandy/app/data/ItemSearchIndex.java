@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import java.util.Iterator;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Maintains the itemsearch full-text table, which lets us search titles,
+ * creators, tags, the other item fields and child notes without scanning
+ * the items table.
+ * <p>
+ * Rows are keyed by docid, which is always the items._id of the indexed item.
+ * Item.save and Attachment.save / delete keep the rows up to date.
+ */
+final class ItemSearchIndex {
+    private static final String TAG = ItemSearchIndex.class.getSimpleName();
+
+    private ItemSearchIndex() {
+    }
+
+    /**
+     * Writes the index row for the item, which must already have a dbId.
+     * The notes column is carried over from the existing row, since notes
+     * are indexed separately when the child notes are saved.
+     *
+     * @param content The item's content, parsed once for all the indexes
+     */
+    static void index(Item item, JSONObject content, Database db) {
+        if (item.dbId == null) {
+            Log.e(TAG, "Can't index an item without a database ID: " + item.getKey());
+            return;
+        }
+
+        String notes = null;
+        String[] args = {item.dbId};
+        Cursor cur = db.rawQuery("select notes from itemsearch where docid=?", args);
+        if (cur != null) {
+            notes = cur.getString(0);
+            cur.close();
+        }
+
+        StringBuilder creators = new StringBuilder();
+        StringBuilder tags = new StringBuilder();
+        StringBuilder fields = new StringBuilder();
+
+        Iterator<String> keys = content.keys();
+        while (keys.hasNext()) {
+            String field = keys.next();
+            switch (field) {
+                case "title":
+                case "itemType":
+                case "notes":
+                    break;
+                case "creators":
+                    JSONArray creatorArray = content.optJSONArray(field);
+                    for (int i = 0; creatorArray != null && i < creatorArray.length(); i++) {
+                        JSONObject creator = creatorArray.optJSONObject(i);
+                        if (creator == null) continue;
+                        append(creators, creator.optString("name"));
+                        append(creators, creator.optString("firstName"));
+                        append(creators, creator.optString("lastName"));
+                    }
+                    break;
+                case "tags":
+                    JSONArray tagArray = content.optJSONArray(field);
+                    for (int i = 0; tagArray != null && i < tagArray.length(); i++) {
+                        JSONObject tag = tagArray.optJSONObject(i);
+                        if (tag != null) append(tags, tag.optString("tag"));
+                    }
+                    break;
+                default:
+                    Object value = content.opt(field);
+                    if (value instanceof String) append(fields, (String) value);
+            }
+        }
+
+        // The creator summary covers items whose JSON doesn't list creators
+        if (creators.length() == 0) append(creators, item.getCreatorSummary());
+
+        db.rawQuery("delete from itemsearch where docid=?", args);
+        SQLiteStatement insert = db.compileStatement("insert into itemsearch " +
+                "(docid, title, creators, tags, fields, notes) values (?, ?, ?, ?, ?, ?)");
+        insert.bindString(1, item.dbId);
+        bind(insert, 2, item.getTitle());
+        bind(insert, 3, creators.toString());
+        bind(insert, 4, tags.toString());
+        bind(insert, 5, fields.toString());
+        bind(insert, 6, notes);
+        insert.executeInsert();
+        insert.close();
+    }
+
+    /**
+     * Re-indexes the text of the child notes of the item with the given key.
+     * Does nothing if the parent item hasn't been indexed yet; its notes will
+     * be picked up when it is.
+     */
+    static void indexNotes(String itemKey, Database db) {
+        if (itemKey == null || "".equals(itemKey)) return;
+
+        long docId;
+        SQLiteStatement lookup = db.compileStatement("select _id from items where item_key=?");
+        lookup.bindString(1, itemKey);
+        try {
+            docId = lookup.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            Log.d(TAG, "No parent item to index notes for, key: " + itemKey);
+            return;
+        } finally {
+            lookup.close();
+        }
+
+        StringBuilder notes = new StringBuilder();
+        String[] args = {itemKey};
+        Cursor cur = db.rawQuery("select content from attachments where item_key=?", args);
+        if (cur != null) {
+            do {
+                try {
+                    JSONObject content = new JSONObject(cur.getString(0));
+                    if ("note".equals(content.optString("itemType")))
+                        append(notes, stripHtml(content.optString("note")));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Skipping attachment with unparseable content", e);
+                }
+            } while (cur.moveToNext());
+            cur.close();
+        }
+
+        SQLiteStatement update = db.compileStatement("update itemsearch set notes=? where docid=?");
+        bind(update, 1, notes.toString());
+        update.bindLong(2, docId);
+        update.executeUpdateDelete();
+        update.close();
+    }
+
+    static void remove(Item item, Database db) {
+        if (item.dbId == null) return;
+        String[] args = {item.dbId};
+        db.rawQuery("delete from itemsearch where docid=?", args);
+    }
+
+    /**
+     * Repopulates the index from the items and attachments tables. This is
+     * slow on big libraries, so it should only be needed when upgrading.
+     */
+    static void rebuild(Database db) {
+        Log.d(TAG, "Rebuilding full-text index");
+        db.rawQuery("delete from itemsearch", new String[]{});
+
+        Cursor cur = db.query(Database.ITEMS_WITH_CONTENT, Database.ITEMCOLS, null, null, null, null, null, null);
+        if (cur != null) {
+            do {
+                Item item = Item.load(cur);
+                if (item != null) index(item, item.getContent(), db);
+            } while (cur.moveToNext());
+            cur.close();
+        }
+
+        cur = db.rawQuery("select distinct item_key from attachments", new String[]{});
+        if (cur != null) {
+            do {
+                indexNotes(cur.getString(0), db);
+            } while (cur.moveToNext());
+            cur.close();
+        }
+    }
+
+    /**
+     * Turns free text typed by the user into an FTS MATCH expression, in which
+     * every word is matched as a prefix and all of them must be present.
+     *
+     * @return The expression, or null when the query has no searchable words
+     */
+    static String matchExpression(String query) {
+        if (query == null) return null;
+
+        StringBuilder sb = new StringBuilder();
+        for (String token : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (token.isEmpty()) continue;
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(token).append('*');
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static String stripHtml(String html) {
+        return html.replaceAll("<[^>]*>", " ");
+    }
+
+    private static void append(StringBuilder sb, String text) {
+        if (text == null || text.isEmpty()) return;
+        if (sb.length() > 0) sb.append(' ');
+        sb.append(text);
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) statement.bindNull(index);
+        else statement.bindString(index, value);
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Maintains the tags and itemtotags tables from the tags in each item's JSON
+ * content, along with the per-tag item count.
+ * <p>
+ * This is called from Item.save, inside its transaction, so the counts can't
+ * drift from the memberships.
+ */
+final class ItemTags {
+    private static final String TAG = ItemTags.class.getSimpleName();
+
+    private ItemTags() {
+    }
+
+    /**
+     * Brings the item's tag memberships in line with its content, touching only
+     * the tags that were added, removed or changed type.
+     */
+    static void index(Item item, JSONObject content, Database db) {
+        if (item.dbId == null) {
+            Log.e(TAG, "Can't index tags of an item without a database ID: " + item.getKey());
+            return;
+        }
+
+        HashMap<String, Integer> tags = new HashMap<>();
+        JSONArray tagArray = content.optJSONArray("tags");
+        for (int i = 0; tagArray != null && i < tagArray.length(); i++) {
+            JSONObject tag = tagArray.optJSONObject(i);
+            if (tag == null || "".equals(tag.optString("tag"))) continue;
+            tags.put(tag.optString("tag"), tag.optInt("type", 0));
+        }
+
+        // Whatever is left in the map after this needs to be added
+        ArrayList<String[]> stale = new ArrayList<>();
+        String[] args = {item.dbId};
+        Cursor cur = db.rawQuery("select itemtotags._id, tag_id, tag, type from itemtotags, tags" +
+                " where tags._id = tag_id and item_id=?", args);
+        if (cur != null) {
+            do {
+                Integer type = tags.get(cur.getString(2));
+                if (type != null && type == cur.getInt(3)) {
+                    tags.remove(cur.getString(2));
+                } else {
+                    stale.add(new String[]{cur.getString(0), cur.getString(1)});
+                }
+            } while (cur.moveToNext());
+            cur.close();
+        }
+
+        if (!stale.isEmpty()) {
+            SQLiteStatement delete = db.compileStatement("delete from itemtotags where _id=?");
+            SQLiteStatement decrement = db.compileStatement(
+                    "update tags set item_count = item_count - 1 where _id=?");
+            for (String[] link : stale) {
+                delete.bindString(1, link[0]);
+                delete.executeUpdateDelete();
+                decrement.bindString(1, link[1]);
+                decrement.executeUpdateDelete();
+            }
+            delete.close();
+            decrement.close();
+            db.rawQuery("delete from tags where item_count <= 0", new String[]{});
+        }
+
+        if (!tags.isEmpty()) {
+            SQLiteStatement insertTag = db.compileStatement(
+                    "insert or ignore into tags (tag, item_count) values (?, 0)");
+            SQLiteStatement lookup = db.compileStatement("select _id from tags where tag=?");
+            SQLiteStatement insertLink = db.compileStatement(
+                    "insert into itemtotags (tag_id, item_id, type) values (?, ?, ?)");
+            SQLiteStatement increment = db.compileStatement(
+                    "update tags set item_count = item_count + 1 where _id=?");
+            for (Map.Entry<String, Integer> tag : tags.entrySet()) {
+                insertTag.bindString(1, tag.getKey());
+                insertTag.executeInsert();
+                lookup.bindString(1, tag.getKey());
+                long tagId = lookup.simpleQueryForLong();
+
+                insertLink.bindLong(1, tagId);
+                insertLink.bindString(2, item.dbId);
+                insertLink.bindLong(3, tag.getValue());
+                insertLink.executeInsert();
+                increment.bindLong(1, tagId);
+                increment.executeUpdateDelete();
+            }
+            insertTag.close();
+            lookup.close();
+            insertLink.close();
+            increment.close();
+        }
+    }
+
+    static void remove(Item item, Database db) {
+        if (item.dbId == null) return;
+        String[] args = {item.dbId};
+        db.rawQuery("update tags set item_count = item_count - 1" +
+                " where _id in (select tag_id from itemtotags where item_id=?)", args);
+        db.rawQuery("delete from itemtotags where item_id=?", args);
+        db.rawQuery("delete from tags where item_count <= 0", new String[]{});
+    }
+
+    /**
+     * Repopulates the tables from the items table; only needed when upgrading.
+     */
+    static void rebuild(Database db) {
+        Log.d(TAG, "Rebuilding tag tables");
+        db.rawQuery("delete from itemtotags", new String[]{});
+        db.rawQuery("delete from tags", new String[]{});
+
+        Cursor cur = db.query(Database.ITEMS_WITH_CONTENT, Database.ITEMCOLS, null, null, null, null, null, null);
+        if (cur == null) return;
+        do {
+            Item item = Item.load(cur);
+            if (item != null) index(item, item.getContent(), db);
+        } while (cur.moveToNext());
+        cur.close();
+    }
+}
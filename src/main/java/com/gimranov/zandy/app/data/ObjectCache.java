@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Size-bounded cache of loaded objects, by Zotero key. Item, Attachment and
+ * ItemCollection keep one each, so that loading the same key again copies the
+ * object we already have instead of querying and parsing it again.
+ * <p>
+ * The cache holds its own copy of each object and hands out fresh copies, so
+ * callers on the UI thread and on the sync threads can change what they get
+ * without affecting each other or the cached state.
+ * <p>
+ * The owning class has to invalidate the key whenever it writes or deletes the
+ * row, and the old key as well when a save changes it.
+ */
+abstract class ObjectCache<T> {
+    private static final String TAG = ObjectCache.class.getSimpleName();
+
+    private final String name;
+    private final LruCache<String, T> cache;
+
+    private int hits;
+    private int misses;
+
+    ObjectCache(String name, int maxSize) {
+        this.name = name;
+        cache = new LruCache<>(maxSize);
+    }
+
+    /**
+     * @return A copy of the object that shares no mutable state with it
+     */
+    abstract T copy(T value);
+
+    /**
+     * @return A copy of the cached object, or null if it has to be loaded
+     * from the database
+     */
+    T get(String key) {
+        if (key == null) return null;
+        T value = cache.get(key);
+        synchronized (this) {
+            if (value == null) misses++;
+            else hits++;
+        }
+        return value == null ? null : copy(value);
+    }
+
+    /**
+     * Caches a copy of the object, so the caller can keep using its own
+     */
+    void put(String key, T value) {
+        if (key == null || value == null) return;
+        cache.put(key, copy(value));
+    }
+
+    void invalidate(String key) {
+        if (key == null) return;
+        cache.remove(key);
+    }
+
+    void clear() {
+        cache.evictAll();
+        Log.d(TAG, "Cleared " + this);
+    }
+
+    synchronized int hitCount() {
+        return hits;
+    }
+
+    synchronized int missCount() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " cache: " + cache.size() + "/" + cache.maxSize()
+                + " entries, " + hits + " hits, " + misses + " misses";
+    }
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Values describing how far the local copy of the library is synced, kept in
+ * the syncstate table so that they go away with the data they describe.
+ */
+public final class SyncState {
+    private static final String TAG = SyncState.class.getSimpleName();
+
+    private static final String LIBRARY_VERSION = "library_version";
+
+    private SyncState() {
+    }
+
+    /**
+     * @return The library version that the local items are known to be current
+     * with, or 0 if they have never been fully synced
+     */
+    public static int getLibraryVersion(Database db) {
+        String[] args = {LIBRARY_VERSION};
+        Cursor cur = db.rawQuery("select value from syncstate where name=?", args);
+        if (cur == null) return 0;
+        int version = cur.getInt(0);
+        cur.close();
+        return version;
+    }
+
+    /**
+     * Records the library version; call this in the transaction that brings the
+     * local items up to that version, or queues the requests that will.
+     */
+    public static void setLibraryVersion(Database db, int version) {
+        SQLiteStatement insert = db.compileStatement(
+                "insert or replace into syncstate (name, value) values (?, ?)");
+        insert.bindString(1, LIBRARY_VERSION);
+        insert.bindLong(2, version);
+        insert.executeInsert();
+        insert.close();
+        Log.d(TAG, "Library version now " + version);
+    }
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.feed;
+
+/**
+ * The fields of one Atom entry of a Zotero feed, as the API gives them. The
+ * same object is used for items, attachments, notes and collections; for
+ * collections, itemType is null.
+ */
+public final class FeedEntry {
+    public String key;
+    public String title;
+    public String itemType;
+    public String updated;
+    public String id;
+    public String etag;
+
+    /**
+     * The object version, sent from API version 2 on
+     */
+    public String version;
+    public String numChildren;
+    public String year;
+    public String creatorSummary;
+
+    /**
+     * The key of the parent item, from the "up" link
+     */
+    public String parentKey;
+
+    /**
+     * The file URL, from the "enclosure" link
+     */
+    public String enclosure;
+
+    /**
+     * The content as sent, JSON with content=json
+     */
+    public String content;
+}
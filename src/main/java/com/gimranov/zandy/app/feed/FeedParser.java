@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.feed;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streams the entries of Zotero Atom feeds, or of a single entry, to a
+ * FeedSink. This is plain Java with SAX, so it runs on the JVM as well as
+ * on Android; XMLResponseParser is the sink that saves to the database, and
+ * the benchmark module measures this class on its own.
+ */
+public final class FeedParser extends DefaultHandler {
+    static final String ATOM_NAMESPACE = "http://www.w3.org/2005/Atom";
+    static final String Z_NAMESPACE = "http://zotero.org/ns/api";
+
+    private static final SAXParserFactory factory = SAXParserFactory.newInstance();
+
+    static {
+        factory.setNamespaceAware(true);
+    }
+
+    private final FeedSink sink;
+
+    /**
+     * Whether the document is a single entry rather than a feed
+     */
+    private boolean single;
+
+    private int depth;
+
+    /**
+     * Depth of the entry being read, or 0 outside entries
+     */
+    private int entryDepth;
+
+    private FeedEntry entry;
+
+    /**
+     * Text of the current element, when it is one we read
+     */
+    private final StringBuilder text = new StringBuilder();
+    private boolean capturing;
+
+    public FeedParser(FeedSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Reads the document and hands each entry to the sink
+     *
+     * @param single Whether the document is an <entry> rather than a <feed>
+     */
+    public void parse(InputStream in, boolean single) throws IOException, SAXException {
+        this.single = single;
+        depth = 0;
+        entryDepth = 0;
+        entry = null;
+        SAXParser parser;
+        try {
+            synchronized (factory) {
+                parser = factory.newSAXParser();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+        InputSource source = new InputSource(in);
+        source.setEncoding("UTF-8");
+        parser.parse(source, this);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        depth++;
+        capturing = false;
+
+        if (entry == null) {
+            if (depth == (single ? 1 : 2) && isAtom(uri, localName, "entry")) {
+                entry = new FeedEntry();
+                entryDepth = depth;
+            } else if (!single && depth == 2 && isAtom(uri, localName, "link")) {
+                sink.link(attribute(attributes, "rel"), attribute(attributes, "href"));
+            }
+            return;
+        }
+
+        // Only the direct children of the entry are read
+        if (depth != entryDepth + 1) return;
+
+        if (ATOM_NAMESPACE.equals(uri)) {
+            switch (localName) {
+                case "link":
+                    link(attribute(attributes, "rel"), attribute(attributes, "href"));
+                    return;
+                case "content":
+                    entry.etag = attributes.getValue(Z_NAMESPACE, "etag");
+                    break;
+                case "title":
+                case "updated":
+                case "id":
+                    break;
+                default:
+                    return;
+            }
+        } else if (!Z_NAMESPACE.equals(uri)) {
+            return;
+        }
+        text.setLength(0);
+        capturing = true;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (capturing) text.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (entry != null && depth == entryDepth) {
+            sink.entry(entry);
+            entry = null;
+            entryDepth = 0;
+        } else if (capturing && depth == entryDepth + 1) {
+            set(uri, localName, text.toString());
+        }
+        capturing = false;
+        depth--;
+    }
+
+    private void set(String uri, String name, String value) {
+        if (ATOM_NAMESPACE.equals(uri)) {
+            switch (name) {
+                case "title":
+                    entry.title = value;
+                    break;
+                case "updated":
+                    entry.updated = value;
+                    break;
+                case "id":
+                    entry.id = value;
+                    break;
+                case "content":
+                    entry.content = value;
+                    break;
+            }
+        } else {
+            switch (name) {
+                case "key":
+                    entry.key = value;
+                    break;
+                case "itemType":
+                    entry.itemType = value;
+                    break;
+                case "numChildren":
+                    entry.numChildren = value;
+                    break;
+                case "version":
+                    entry.version = value;
+                    break;
+                case "year":
+                    entry.year = value;
+                    break;
+                case "creatorSummary":
+                    entry.creatorSummary = value;
+                    break;
+            }
+        }
+    }
+
+    private void link(String rel, String href) {
+        if ("up".equals(rel)) {
+            // Pulling out the key of the attachment's parent
+            int start = href.indexOf("/items/");
+            if (start >= 0 && href.length() >= start + 15)
+                entry.parentKey = href.substring(start + 7, start + 15);
+        } else if ("enclosure".equals(rel)) {
+            entry.enclosure = href;
+        }
+    }
+
+    private static boolean isAtom(String uri, String localName, String name) {
+        return ATOM_NAMESPACE.equals(uri) && name.equals(localName);
+    }
+
+    /**
+     * Attributes without a namespace are found by local name, or by qualified
+     * name where the parser doesn't report local names
+     */
+    private static String attribute(Attributes attributes, String name) {
+        for (int i = 0; i < attributes.getLength(); i++) {
+            if (name.equals(attributes.getLocalName(i)) || name.equals(attributes.getQName(i)))
+                return attributes.getValue(i);
+        }
+        return "";
+    }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.feed;
+
+/**
+ * Receives what FeedParser reads, in document order
+ */
+public interface FeedSink {
+    /**
+     * A link of the feed itself, such as "self" or "next"
+     */
+    void link(String rel, String href);
+
+    /**
+     * A complete entry. The sink may keep the entry; the parser doesn't reuse it.
+     */
+    void entry(FeedEntry entry);
+}
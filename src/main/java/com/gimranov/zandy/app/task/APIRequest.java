@@ -16,31 +16,37 @@
  ******************************************************************************/
 package com.gimranov.zandy.app.task;
 
-import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.gimranov.zandy.app.JsonResponseParser;
+import com.gimranov.zandy.app.R;
 import com.gimranov.zandy.app.ServerCredentials;
 import com.gimranov.zandy.app.XMLResponseParser;
 import com.gimranov.zandy.app.data.Attachment;
+import com.gimranov.zandy.app.data.ChangeJournal;
 import com.gimranov.zandy.app.data.Database;
+import com.gimranov.zandy.app.data.HttpCache;
 import com.gimranov.zandy.app.data.Item;
 import com.gimranov.zandy.app.data.ItemCollection;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -54,6 +60,10 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -72,16 +82,37 @@ public class APIRequest {
     private static final String TAG = APIRequest.class.getSimpleName();
 
     /**
-     * Statuses used for items and collections. They are currently strings, but
-     * they should change to integers. These statuses may be stored in the database.
+     * Statuses used for items, attachments and collections, as stored in their
+     * dirty columns. Everything but API_CLEAN is positive, so rows that need
+     * uploading are those with dirty > API_CLEAN, which is what the partial
+     * indexes on those columns cover. Use dirtyLabel(..) to show them.
      */
-    // XXX i18n
-    public static final String API_DIRTY = "Unsynced change";
-    public static final String API_NEW = "New item / collection";
-    public static final String API_MISSING = "Partial data";
-    public static final String API_STALE = "Stale data";
-    public static final String API_WIP = "Sync attempted";
-    public static final String API_CLEAN = "No unsynced change";
+    public static final int API_CLEAN = 0;
+    public static final int API_DIRTY = 1;
+    public static final int API_NEW = 2;
+    public static final int API_WIP = 3;
+    public static final int API_MISSING = 4;
+    public static final int API_STALE = 5;
+
+    /**
+     * Gives the string resource describing a dirty status
+     */
+    public static int dirtyLabel(int dirty) {
+        switch (dirty) {
+            case API_CLEAN:
+                return R.string.dirty_clean;
+            case API_NEW:
+                return R.string.dirty_new;
+            case API_WIP:
+                return R.string.dirty_wip;
+            case API_MISSING:
+                return R.string.dirty_missing;
+            case API_STALE:
+                return R.string.dirty_stale;
+            default:
+                return R.string.dirty_dirty;
+        }
+    }
 
 	/*
      * These are constants represented by integers.
@@ -92,7 +123,7 @@ public class APIRequest {
     /**
      * HTTP response codes that we are used to
      */
-    private static final int HTTP_ERROR_CONFLICT = 412;
+    static final int HTTP_ERROR_CONFLICT = 412;
     private static final int HTTP_ERROR_UNSPECIFIED = 400;
 
 	/*
@@ -125,6 +156,8 @@ public class APIRequest {
     static final int ITEMS_CHILDREN = 10002;
     private static final int COLLECTIONS_ALL = 10003;
     private static final int ITEM_BY_KEY = 10004;
+    static final int ITEMS_VERSIONS = 10005;
+    public static final int ITEMS_BY_KEYS = 10006;
 
     // Requests that require write access
     private static final int ITEM_NEW = 20000;
@@ -135,6 +168,7 @@ public class APIRequest {
     private static final int ITEM_ATTACHMENT_NEW = 20005;
     public static final int ITEM_ATTACHMENT_UPDATE = 20006;
     public static final int ITEM_ATTACHMENT_DELETE = 20007;
+    static final int ITEMS_WRITE = 20008;
 
 
     public static final int ITEM_FIELDS = 30000;
@@ -369,6 +403,10 @@ public class APIRequest {
         return handler;
     }
 
+    boolean hasHandler() {
+        return handler != null;
+    }
+
     public void setHandler(APIEvent handler) {
         if (this.handler == null) {
             this.handler = handler;
@@ -530,6 +568,17 @@ public class APIRequest {
         db.rawQuery("delete from apirequests where uuid=?", args);
     }
 
+    /**
+     * To be called when the request turns out not to be needed; deletes
+     * the corresponding row from the database, if there is one.
+     *
+     * @param db Database object
+     */
+    void discard(Database db) {
+        String[] args = {uuid};
+        db.rawQuery("delete from apirequests where uuid=?", args);
+    }
+
     /**
      * Returns HTML-formatted string of the request
      * <p>
@@ -562,14 +611,47 @@ public class APIRequest {
     }
 
     /**
-     * Issues the specified request, calling its specified handler as appropriate
+     * Shared by all requests; created when first needed
+     */
+    private static Transport transport;
+
+    static synchronized Transport getTransport() {
+        if (transport == null) transport = new PooledTransport();
+        return transport;
+    }
+
+    /**
+     * Replaces the transport that requests are sent with, for instance with a
+     * stand-in server in tests. Null restores the default PooledTransport.
+     */
+    public static synchronized void setTransport(Transport t) {
+        if (transport instanceof PooledTransport && transport != t)
+            ((PooledTransport) transport).shutdown();
+        transport = t;
+    }
+
+    /**
+     * Issues the specified request, calling its specified handler as appropriate.
+     * Follow-up requests found in the response are dropped; use
+     * issue(Database, ServerCredentials, SyncSession) to send them too.
      * <p>
      * This should not be run from a UI thread
      *
-     * @return
      * @throws APIException
      */
     public void issue(Database db, ServerCredentials cred) throws APIException {
+        issue(db, cred, new SyncSession());
+    }
+
+    /**
+     * Issues the specified request, calling its specified handler as appropriate,
+     * and queues the follow-up requests found in the response on the session
+     * <p>
+     * This should not be run from a UI thread
+     *
+     * @throws APIException
+     */
+    public void issue(Database db, ServerCredentials cred, SyncSession session) throws APIException {
 
         URI uri;
 
@@ -582,6 +664,18 @@ public class APIRequest {
         // Force lower-case
         method = method.toLowerCase();
 
+        // Write batches read their objects now, so they send the latest state
+        WriteBatch batch = null;
+        if (type == ITEMS_WRITE) {
+            batch = WriteBatch.load(updateKey, db);
+            if (batch.isEmpty()) {
+                Log.d(TAG, "Nothing left to write for batch: " + updateKey);
+                getHandler().onComplete(this);
+                return;
+            }
+            body = batch.body();
+        }
+
         Log.i(TAG, "Request " + method + ": " + query);
 
         try {
@@ -590,32 +684,48 @@ public class APIRequest {
             throw new APIException(APIException.INVALID_URI, "Invalid URI: " + query, this);
         }
 
-        HttpClient client = new DefaultHttpClient();
-        // The default implementation includes an Expect: header, which
-        // confuses the Zotero servers.
-        client.getParams().setParameter("http.protocol.expect-continue", false);
-        // We also need to send our data nice and raw.
-        client.getParams().setParameter("http.protocol.content-charset", "UTF-8");
+        Transport transport = getTransport();
+        HttpContext context = session.newHttpContext();
 
+        // Only the request for our method is built
+        HttpRequestBase request;
+        if ("get".equals(method)) {
+            request = new HttpGet(uri);
+        } else if ("post".equals(method)) {
+            request = new HttpPost(uri);
+        } else if ("put".equals(method)) {
+            request = new HttpPut(uri);
+        } else if ("delete".equals(method)) {
+            request = new HttpDelete(uri);
+        } else {
+            throw new APIException(APIException.INVALID_METHOD,
+                    "Unexpected method: " + method, this);
+        }
 
-        HttpGet get = new HttpGet(uri);
-        HttpPost post = new HttpPost(uri);
-        HttpPut put = new HttpPut(uri);
-        HttpDelete delete = new HttpDelete(uri);
+        // Library versions, multi-object writes and lookups by key list need
+        // version 2, and the JSON format version 3
+        String apiVersion;
+        if ("jsonstream".equals(disposition)) {
+            apiVersion = "3";
+        } else if (type == ITEMS_WRITE || type == ITEMS_VERSIONS || type == ITEMS_BY_KEYS) {
+            apiVersion = "2";
+        } else {
+            apiVersion = "1";
+        }
+        request.setHeader("Zotero-API-Version", apiVersion);
 
-        for (HttpRequest request : Arrays.asList(get, post, put, delete)) {
-            request.setHeader("Zotero-API-Version", "1");
+        if (contentType != null && !"delete".equals(method)) {
+            request.setHeader("Content-Type", contentType);
         }
 
         // There are several shared initialization routines for POST and PUT
-        if ("post".equals(method) || "put".equals(method)) {
+        if (request instanceof HttpEntityEnclosingRequestBase) {
             if (ifMatch != null) {
-                post.setHeader("If-Match", ifMatch);
-                put.setHeader("If-Match", ifMatch);
+                request.setHeader("If-Match", ifMatch);
             }
-            if (contentType != null) {
-                post.setHeader("Content-Type", contentType);
-                put.setHeader("Content-Type", contentType);
+            if (batch != null && batch.getLibraryVersion() > 0) {
+                request.setHeader("If-Unmodified-Since-Version",
+                        Integer.toString(batch.getLibraryVersion()));
             }
             if (body != null) {
                 Log.d(TAG, "Request body: " + body);
@@ -628,15 +738,14 @@ public class APIRequest {
                             "UnsupportedEncodingException. This shouldn't " +
                                     "be possible-- UTF-8 is certainly supported", this);
                 }
-                post.setEntity(entity);
-                put.setEntity(entity);
+                ((HttpEntityEnclosingRequestBase) request).setEntity(entity);
             }
         }
 
-        if ("get".equals(method)) {
-            if (contentType != null) {
-                get.setHeader("Content-Type", contentType);
-            }
+        // Version requests may be answered with 304, and handle the response themselves
+        if (type == ITEMS_VERSIONS) {
+            VersionSync.issue(this, transport, request, db, cred, session);
+            return;
         }
 		
 		/* For requests that return Atom feeds or entries (XML):
@@ -645,6 +754,7 @@ public class APIRequest {
 		 * 		ITEMS_CHILDREN			]
 		 * 
 		 * 		ITEM_BY_KEY
+		 * 		ITEMS_BY_KEYS
 		 * 		COLLECTIONS_ALL
 		 * 		ITEM_NEW
 		 * 		ITEM_UPDATE
@@ -652,7 +762,18 @@ public class APIRequest {
 		 * 		ITEM_ATTACHMENT_UPDATE
 		 */
         if ("xml".equals(disposition)) {
-            XMLResponseParser parse = new XMLResponseParser(this);
+            // Feeds we have parsed before are requested conditionally; lookups
+            // by key are always sent in full, since the local copy may be gone
+            boolean conditional = "get".equals(method)
+                    && type != ITEM_BY_KEY && type != ITEMS_BY_KEYS;
+            HttpCache.Entry cached = conditional ? HttpCache.get(db, query) : null;
+            if (cached != null) {
+                if (cached.etag != null) request.setHeader("If-None-Match", cached.etag);
+                if (cached.lastModified != null)
+                    request.setHeader("If-Modified-Since", cached.lastModified);
+            }
+
+            XMLResponseParser parse = new XMLResponseParser(this, session);
             // These types will always have a temporary key that we've
             // been using locally, and which should be replaced by the
             // incoming item key.
@@ -662,26 +783,25 @@ public class APIRequest {
             }
 
             try {
-                HttpResponse hr;
-                if ("post".equals(method)) {
-                    hr = client.execute(post);
-                } else if ("put".equals(method)) {
-                    hr = client.execute(put);
-                } else {
-                    // We fall back on GET here, but there really
-                    // shouldn't be anything else, so we throw in that case
-                    // for good measure
-                    if (!"get".equals(method)) {
-                        throw new APIException(APIException.INVALID_METHOD,
-                                "Unexpected method: " + method, this);
-                    }
-                    hr = client.execute(get);
+                if ("delete".equals(method)) {
+                    throw new APIException(APIException.INVALID_METHOD,
+                            "Unexpected method: " + method, this);
                 }
+                HttpResponse hr = transport.execute(request, context);
 
                 // Record the response code
                 status = hr.getStatusLine().getStatusCode();
                 Log.d(TAG, status + " : " + hr.getStatusLine().getReasonPhrase());
 
+                if (status == 304) {
+                    // What we have is current; the next page may not be
+                    Log.d(TAG, "Not modified, skipping parse: " + query);
+                    if (hr.getEntity() != null) hr.getEntity().consumeContent();
+                    if (cached != null && cached.next != null)
+                        session.queue(continuation(cached.next, type));
+                    return;
+                }
+
                 if (status < 400) {
                     HttpEntity he = hr.getEntity();
                     InputStream in = he.getContent();
@@ -694,6 +814,18 @@ public class APIRequest {
                         parse.parse(mode, uri.toString(), db);
                     } catch (RuntimeException e) {
                         throw new RuntimeException("Parser threw exception on request: " + method + " " + query, e);
+                    } finally {
+                        // Releases the connection back to the pool
+                        he.consumeContent();
+                    }
+
+                    if (conditional && parse.isSaved()) {
+                        Header etag = hr.getFirstHeader("ETag");
+                        Header lastModified = hr.getFirstHeader("Last-Modified");
+                        HttpCache.put(db, query, new HttpCache.Entry(
+                                etag == null ? null : etag.getValue(),
+                                lastModified == null ? null : lastModified.getValue(),
+                                parse.getNext()));
                     }
                 } else {
                     ByteArrayOutputStream ostream = new ByteArrayOutputStream();
@@ -728,6 +860,33 @@ public class APIRequest {
                         "An IOException was thrown: " + sb.toString(), this, e);
             }
         } // end if ("xml".equals(disposition)) {..}
+        // Items in the JSON format, read as they arrive
+        else if ("jsonstream".equals(disposition)) {
+            try {
+                HttpResponse hr = transport.execute(request, context);
+                status = hr.getStatusLine().getStatusCode();
+                Log.d(TAG, status + " : " + hr.getStatusLine().getReasonPhrase());
+                HttpEntity he = hr.getEntity();
+                try {
+                    if (status >= 400) {
+                        String error = he == null ? "" : EntityUtils.toString(he, "UTF-8");
+                        Log.e(TAG, "Response status " + status + " : " + error);
+                        getHandler().onError(this, APIRequest.HTTP_ERROR_UNSPECIFIED);
+                        status = getHttpStatus() + REQ_FAILING;
+                        recordAttempt(db);
+                        throw new APIException(APIException.HTTP_ERROR, error, this);
+                    }
+                    new JsonResponseParser(this).parse(he.getContent(), db);
+                } finally {
+                    // Releases the connection back to the pool
+                    if (he != null) he.consumeContent();
+                }
+            } catch (IOException e) {
+                recordAttempt(db);
+                throw new APIException(APIException.HTTP_ERROR,
+                        "An IOException was thrown: " + e.getMessage(), this, e);
+            }
+        }
 		/* For requests that return non-XML data:
 		 * 		ITEMS_ALL				]
 		 * 		ITEMS_FOR_COLLECTION	]- For format=keys
@@ -757,25 +916,25 @@ public class APIRequest {
 		 * supported; they should have a disposition of their own.
 		 */
         else {
-            BasicResponseHandler brh = new BasicResponseHandler();
             String resp;
+            int modifiedVersion = 0;
 
             try {
-                if ("post".equals(method)) {
-                    resp = client.execute(post, brh);
-                } else if ("put".equals(method)) {
-                    resp = client.execute(put, brh);
-                } else if ("delete".equals(method)) {
-                    resp = client.execute(delete, brh);
-                } else {
-                    // We fall back on GET here, but there really
-                    // shouldn't be anything else, so we throw in that case
-                    // for good measure
-                    if (!"get".equals(method)) {
-                        throw new APIException(APIException.INVALID_METHOD,
-                                "Unexpected method: " + method, this);
+                HttpResponse hr = transport.execute(request, context);
+                Header modified = hr.getFirstHeader("Last-Modified-Version");
+                if (modified != null) {
+                    try {
+                        modifiedVersion = Integer.parseInt(modified.getValue());
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "Unreadable Last-Modified-Version: " + modified.getValue());
                     }
-                    resp = client.execute(get, brh);
+                }
+                try {
+                    resp = new BasicResponseHandler().handleResponse(hr);
+                } finally {
+                    // Error responses aren't read by the handler, but the
+                    // connection only goes back to the pool once they are
+                    if (hr.getEntity() != null) hr.getEntity().consumeContent();
                 }
             } catch (IOException e) {
                 StringBuilder sb = new StringBuilder();
@@ -905,7 +1064,7 @@ public class APIRequest {
                     }
                 }
             } else if ("json".equals(disposition)) {
-                // TODO
+                if (batch != null) batch.apply(resp, modifiedVersion, this, db);
             } else {
 				/* Here, disposition should be "none" */
                 // Nothing to be done.
@@ -935,6 +1094,64 @@ public class APIRequest {
         return req;
     }
 
+    /**
+     * Produces an API request for the next page of a feed
+     *
+     * @param href The continuation link from the feed
+     * @param type The type of the request for the feed, so that the next page
+     *             is requested with the same API version
+     */
+    public static APIRequest continuation(String href, int type) {
+        APIRequest req = new APIRequest(href, "get", null);
+        req.query = href;
+        req.disposition = "xml";
+        req.type = type;
+        return req;
+    }
+
+    /**
+     * Produces an API request for the specified items, in one feed, or in
+     * the JSON format if the user chose it
+     *
+     * @param keys Item keys; the API takes up to 50
+     * @param cred Credentials
+     */
+    public static APIRequest fetchItems(List<String> keys, ServerCredentials cred) {
+        APIRequest req;
+        if (cred.useJsonFormat()) {
+            req = new APIRequest(ServerCredentials.APIBASE
+                    + cred.prep(ServerCredentials.ITEMS)
+                    + "?itemKey=" + TextUtils.join(",", keys)
+                    + "&format=json&limit=" + keys.size(), "get", null);
+            req.disposition = "jsonstream";
+        } else {
+            req = new APIRequest(ServerCredentials.APIBASE
+                    + cred.prep(ServerCredentials.ITEMS)
+                    + "?itemKey=" + TextUtils.join(",", keys)
+                    + "&content=json", "get", null);
+            req.disposition = "xml";
+        }
+        req.type = ITEMS_BY_KEYS;
+        req.key = cred.getKey();
+        return req;
+    }
+
+    /**
+     * Produces an API request that brings all items up to date by library
+     * version; see VersionSync. This replaces walking the whole item feed.
+     *
+     * @param cred Credentials
+     */
+    public static APIRequest fetchVersions(ServerCredentials cred) {
+        APIRequest req = new APIRequest(ServerCredentials.APIBASE
+                + cred.prep(ServerCredentials.ITEMS)
+                + "?format=versions", "get", null);
+        req.disposition = "none";
+        req.type = ITEMS_VERSIONS;
+        req.key = cred.getKey();
+        return req;
+    }
+
     /**
      * Produces an API request for the items in a specified collection.
      *
@@ -1024,6 +1241,7 @@ public class APIRequest {
                 "DELETE",
                 null);
         templ.disposition = "none";
+        templ.type = ITEM_MEMBERSHIP_REMOVE;
 
         return templ;
     }
@@ -1055,6 +1273,7 @@ public class APIRequest {
         }
         templ.body = sb.toString();
         templ.disposition = "none";
+        templ.type = ITEM_MEMBERSHIP_ADD;
         return templ;
     }
 
@@ -1120,6 +1339,47 @@ public class APIRequest {
         return templ;
     }
 
+    /**
+     * Craft requests writing the specified objects in batches, as many
+     * objects per request as the API accepts. The objects are listed by the
+     * tokens from WriteBatch.token(..), and are read from the database when
+     * the request is issued, so each request sends their latest state.
+     * <p>
+     * From the API docs (version 2):
+     * POST /users/1/items
+     * {"items": [{"itemKey": "ABCD2345", "itemType": "book", ...}, ...]}
+     *
+     * @param objects
+     * @return
+     */
+    static ArrayList<APIRequest> write(ArrayList<String> objects) {
+        ArrayList<APIRequest> requests = new ArrayList<>();
+        for (int start = 0; start < objects.size(); start += WriteBatch.MAX_OBJECTS) {
+            List<String> batch = objects.subList(start,
+                    Math.min(start + WriteBatch.MAX_OBJECTS, objects.size()));
+            APIRequest templ = new APIRequest(ServerCredentials.APIBASE
+                    + ServerCredentials.ITEMS,
+                    "POST",
+                    null);
+            templ.type = ITEMS_WRITE;
+            templ.disposition = "json";
+            templ.updateType = "batch";
+            templ.updateKey = TextUtils.join(" ", batch);
+            requests.add(templ);
+        }
+        return requests;
+    }
+
+    /**
+     * A write batch of the one object, which is sent with its version, or
+     * the library version, as the precondition; see WriteBatch
+     */
+    private static APIRequest versioned(String token) {
+        ArrayList<String> objects = new ArrayList<>();
+        objects.add(token);
+        return write(objects).get(0);
+    }
+
     /**
      * Craft a request for the children of the specified item
      *
@@ -1159,6 +1419,10 @@ public class APIRequest {
             return add(item, aL);
         }
 
+        // Attachments synced in the JSON format have a version instead of an etag
+        if (attachment.etag == null || "".equals(attachment.etag))
+            return versioned(WriteBatch.token(attachment));
+
         APIRequest templ = new APIRequest(ServerCredentials.APIBASE
                 + ServerCredentials.ITEMS + "/" + attachment.key,
                 "PUT",
@@ -1170,6 +1434,7 @@ public class APIRequest {
         }
         templ.ifMatch = '"' + attachment.etag + '"';
         templ.disposition = "xml";
+        templ.type = ITEM_ATTACHMENT_UPDATE;
 
         return templ;
     }
@@ -1189,6 +1454,11 @@ public class APIRequest {
             return add(mAL);
         }
 
+        // Items synced in the JSON format have a version instead of an etag,
+        // which only the multi-object write can send
+        if (item.getEtag() == null || "".equals(item.getEtag()))
+            return versioned(WriteBatch.token(item));
+
         APIRequest templ = new APIRequest(ServerCredentials.APIBASE
                 + ServerCredentials.ITEMS + "/" + item.getKey(),
                 "PUT",
@@ -1197,49 +1467,138 @@ public class APIRequest {
         templ.ifMatch = '"' + item.getEtag() + '"';
         Log.d(TAG, "etag: " + item.getEtag());
         templ.disposition = "xml";
+        templ.type = ITEM_UPDATE;
 
         return templ;
     }
 
     /**
-     * Produces API requests to delete queued items from the server.
+     * Produces an API request to delete an item or attachment from the server.
      * This request always needs a key.
      * <p>
      * From the API docs:
      * DELETE /users/1/items/ABCD2345
      * If-Match: "8e984e9b2a8fb560b0085b40f6c2c2b7"
      *
-     * @param c
+     * @param key  Key of the item or attachment
+     * @param etag The last etag we had for it
      * @return
      */
-    public static ArrayList<APIRequest> delete(Context c) {
-        ArrayList<APIRequest> list = new ArrayList<>();
-        Database db = new Database(c);
-        String[] args = {};
-        Cursor cur = db.rawQuery("select item_key, etag from deleteditems", args);
-        if (cur == null) {
-            db.close();
-            Log.d(TAG, "No deleted items found in database");
-            return list;
+    private static APIRequest delete(String key, String etag) {
+        APIRequest templ = new APIRequest(ServerCredentials.APIBASE
+                + ServerCredentials.ITEMS + "/" + key,
+                "DELETE",
+                null);
+        templ.disposition = "none";
+        templ.ifMatch = etag;
+        templ.type = ITEM_DELETE;
+        return templ;
+    }
+
+    /**
+     * Turns the change journal into requests stored in the database, and
+     * clears it, all in one transaction.
+     * <p>
+     * Updated items and attachments go into write batches of up to
+     * WriteBatch.MAX_OBJECTS each, items first so that new parents exist
+     * before their children; the fields that changed are only logged, since
+     * the API takes whole objects. Objects that have an etag but no version
+     * yet, from collection feeds, are sent as single PUTs with If-Match after
+     * the batches instead; in a batch they would have to wait for a library
+     * version. Deletions and membership changes follow in the order they were
+     * made. Objects deleted since they were changed only get the deletion, and
+     * objects that no longer exist locally get nothing.
+     *
+     * @return The number of requests stored
+     */
+    static int drainJournal(Database db) {
+        ArrayList<ChangeJournal.Change> changes = ChangeJournal.pending(db);
+        if (changes.isEmpty()) return 0;
+
+        HashSet<String> deleted = new HashSet<>();
+        HashMap<String, LinkedHashSet<String>> fields = new HashMap<>();
+        for (ChangeJournal.Change change : changes) {
+            String object = change.objectType + ":" + change.objectKey;
+            if (change.action == ChangeJournal.ACTION_DELETE) {
+                deleted.add(object);
+            } else if (change.action == ChangeJournal.ACTION_UPDATE) {
+                if (!fields.containsKey(object)) fields.put(object, new LinkedHashSet<String>());
+                fields.get(object).add(change.field == null ? "*" : change.field);
+            }
         }
 
-        do {
-            APIRequest templ = new APIRequest(ServerCredentials.APIBASE
-                    + ServerCredentials.ITEMS + "/" + cur.getString(0),
-                    "DELETE",
-                    null);
-            templ.disposition = "none";
-            templ.ifMatch = cur.getString(1);
-            Log.d(TAG, "Adding deleted item: " + cur.getString(0) + " : " + templ.ifMatch);
-            // Save the request to the database to be dispatched later
-            templ.save(db);
-            list.add(templ);
-        } while (cur.moveToNext());
-        cur.close();
+        ArrayList<APIRequest> requests = new ArrayList<>();
+        LinkedHashSet<String> items = new LinkedHashSet<>();
+        LinkedHashSet<String> attachments = new LinkedHashSet<>();
+        HashSet<String> updated = new HashSet<>();
+        for (ChangeJournal.Change change : changes) {
+            String object = change.objectType + ":" + change.objectKey;
+            switch (change.action) {
+                case ChangeJournal.ACTION_UPDATE:
+                    if (deleted.contains(object)) break;
+                    if (change.objectType == ChangeJournal.OBJECT_ATTACHMENT) {
+                        Attachment attachment = Attachment.load(change.objectKey, db);
+                        if (attachment == null || attachment.dirty == API_CLEAN
+                                || !updated.add(object)) break;
+                        Log.d(TAG, "Changed in " + object + ": " + fields.get(object));
+                        if (attachment.version == 0 && !TextUtils.isEmpty(attachment.etag))
+                            requests.add(update(attachment, db));
+                        else
+                            attachments.add(WriteBatch.token(attachment));
+                    } else {
+                        Item item = Item.load(change.objectKey, db);
+                        if (item == null || item.dirty == API_CLEAN
+                                || !updated.add(object)) break;
+                        Log.d(TAG, "Changed in " + object + ": " + fields.get(object));
+                        if (item.getVersion() == 0 && !TextUtils.isEmpty(item.getEtag()))
+                            requests.add(update(item));
+                        else
+                            items.add(WriteBatch.token(item));
+                    }
+                    break;
+                case ChangeJournal.ACTION_DELETE:
+                    requests.add(delete(change.objectKey, change.target));
+                    break;
+                case ChangeJournal.ACTION_MEMBERSHIP_ADD:
+                case ChangeJournal.ACTION_MEMBERSHIP_REMOVE:
+                    Item item = Item.load(change.objectKey, db);
+                    ItemCollection collection = ItemCollection.load(change.target, db);
+                    if (item == null || collection == null) {
+                        Log.d(TAG, "Nothing to send for " + change);
+                        break;
+                    }
+                    if (change.action == ChangeJournal.ACTION_MEMBERSHIP_ADD)
+                        requests.add(add(item, collection));
+                    else
+                        requests.add(remove(item, collection));
+                    break;
+            }
+        }
+        requests.addAll(0, write(new ArrayList<String>(attachments)));
+        requests.addAll(0, write(new ArrayList<String>(items)));
 
-        db.rawQuery("delete from deleteditems", args);
-        db.close();
-        return list;
+        db.beginTransaction();
+        try {
+            for (APIRequest req : requests) {
+                req.status = REQ_NEW;
+                req.save(db);
+            }
+            ChangeJournal.clear(db, changes.get(changes.size() - 1).id);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "Stored " + requests.size() + " requests for " + changes.size() + " journaled changes");
+        return requests.size();
+    }
+
+    /**
+     * Returns every request waiting to be sent: the change journal is
+     * drained first, so its requests come after any older ones still stored.
+     */
+    public static ArrayList<APIRequest> outbox(Database db) {
+        drainJournal(db);
+        return queue(db);
     }
 
     /**
@@ -1253,7 +1612,7 @@ public class APIRequest {
         String[] args = {};
 
         Cursor cur = db.query("apirequests", cols, "", args, null, null,
-                null, null);
+                "_id", null);
         if (cur == null) return list;
 
         do {
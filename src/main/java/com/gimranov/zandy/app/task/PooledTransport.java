@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * A Transport over one HttpClient with a pool of keep-alive connections, so
+ * that the requests of a sync share connections instead of each paying for
+ * a new TCP connection and TLS handshake.
+ * <p>
+ * Responses are requested with gzip or deflate compression and decoded as
+ * they are read, so the XML parser still streams. The bytes received and the
+ * bytes they decoded to are counted in the TransferStats of the request's
+ * HttpContext, if it has any; see SyncSession.newHttpContext().
+ */
+public final class PooledTransport implements Transport {
+    private static final String TAG = PooledTransport.class.getSimpleName();
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 20 * 1000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 60 * 1000;
+
+    /**
+     * Enough for the readers of ZoteroAPITask; nearly all requests go to
+     * the same host
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /**
+     * How long idle connections are kept when the server doesn't say
+     */
+    private static final long KEEP_ALIVE = 30 * 1000;
+
+    /**
+     * The HttpContext attribute holding the TransferStats to count a response in
+     */
+    public static final String TRANSFER_STATS = "zandy.transfer-stats";
+
+    private final DefaultHttpClient client;
+
+    public PooledTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param connectTimeout Milliseconds to wait for a connection
+     * @param socketTimeout  Milliseconds to wait for data
+     * @param maxConnections Connections kept open, per host and in total
+     */
+    public PooledTransport(int connectTimeout, int socketTimeout, int maxConnections) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        // We also need to send our data nice and raw.
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        // The default implementation includes an Expect: header, which
+        // confuses the Zotero servers.
+        HttpProtocolParams.setUseExpectContinue(params, false);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        // Pooled connections may have been closed by the server meanwhile
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        ConnManagerParams.setTimeout(params, connectTimeout);
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+        client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy server = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = server.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : KEEP_ALIVE;
+            }
+        });
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context)
+                    throws HttpException, IOException {
+                if (!request.containsHeader("Accept-Encoding"))
+                    request.addHeader("Accept-Encoding", "gzip, deflate");
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context)
+                    throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) return;
+                Header encoding = entity.getContentEncoding();
+                response.setEntity(new DecodingEntity(entity,
+                        encoding == null ? null : encoding.getValue(),
+                        (TransferStats) context.getAttribute(TRANSFER_STATS)));
+                response.removeHeaders("Content-Encoding");
+                response.removeHeaders("Content-Length");
+            }
+        });
+        Log.d(TAG, "Transport with " + maxConnections + " connections, timeouts "
+                + connectTimeout + "/" + socketTimeout + " ms");
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        return client.execute(request, context);
+    }
+
+    /**
+     * Closes the pooled connections
+     */
+    public void shutdown() {
+        client.getConnectionManager().shutdown();
+    }
+
+    /**
+     * The bytes received by the requests of one sync, and the bytes of
+     * responses they decoded to
+     */
+    public static final class TransferStats {
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong decoded = new AtomicLong();
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        public long getDecoded() {
+            return decoded.get();
+        }
+
+        public void log() {
+            long received = getReceived();
+            long decoded = getDecoded();
+            Log.d(TAG, "Received " + received + " bytes for " + decoded + " bytes of responses"
+                    + (decoded > 0 ? ", " + (100 - received * 100 / decoded) + "% saved" : ""));
+        }
+    }
+
+    /**
+     * Decodes a response entity as it is read, counting the bytes on both
+     * sides when there are stats to count them in. Unknown encodings are
+     * passed through as they are.
+     */
+    private static class DecodingEntity extends HttpEntityWrapper {
+        private final String encoding;
+        private final TransferStats stats;
+        private InputStream content;
+
+        DecodingEntity(HttpEntity entity, String encoding, TransferStats stats) {
+            super(entity);
+            this.encoding = encoding == null ? "" : encoding.toLowerCase(Locale.US);
+            this.stats = stats;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content != null && !isRepeatable()) return content;
+            InputStream in = wrappedEntity.getContent();
+            if (stats != null) in = new CountingInputStream(in, stats.received);
+            if (encoding.contains("gzip")) {
+                in = new GZIPInputStream(in);
+            } else if (encoding.contains("deflate")) {
+                in = new InflaterInputStream(in);
+            }
+            if (stats != null) in = new CountingInputStream(in, stats.decoded);
+            content = in;
+            return content;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
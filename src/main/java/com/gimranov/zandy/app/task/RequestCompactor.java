@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.util.Log;
+
+import com.gimranov.zandy.app.data.Database;
+
+/**
+ * Drops, cancels and merges redundant requests in a batch before ZoteroAPITask
+ * sends it. The batch mixes requests built for this sync with ones stored by
+ * earlier syncs, so the same change can be queued more than once:
+ * <ul>
+ * <li>repeated GETs of the same resource are sent once;</li>
+ * <li>of several updates or creations of one object, only the last is sent;</li>
+ * <li>updates and membership changes for an item deleted later in the batch
+ * are dropped, as are repeated deletions;</li>
+ * <li>a membership added and removed again cancels out, and a membership
+ * removed and added again only needs the addition;</li>
+ * <li>additions to one collection are merged into a single request.</li>
+ * </ul>
+ * Dropped requests are also removed from the database, so they don't come
+ * back with the next sync.
+ */
+final class RequestCompactor {
+    private static final String TAG = RequestCompactor.class.getSimpleName();
+
+    private RequestCompactor() {
+    }
+
+    /**
+     * @param requests Requests prepared with the credentials, in the order they
+     *                 should be sent; null entries are skipped
+     * @return The requests that still need to be sent, in order
+     */
+    static APIRequest[] compact(APIRequest[] requests, Database db) {
+        ArrayList<APIRequest> list = new ArrayList<>();
+        for (APIRequest r : requests) {
+            if (r != null) list.add(r);
+        }
+        int count = list.size();
+
+        ArrayList<APIRequest> merged = new ArrayList<>();
+        boolean[] drop = redundant(list, merged);
+        for (APIRequest r : merged) {
+            r.save(db);
+        }
+
+        ArrayList<APIRequest> kept = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (drop[i]) {
+                Log.d(TAG, "Dropping redundant request: " + list.get(i).method
+                        + " " + list.get(i).query);
+                list.get(i).discard(db);
+            } else {
+                kept.add(list.get(i));
+            }
+        }
+
+        if (kept.size() < count) {
+            Log.i(TAG, "Compacted " + count + " requests to " + kept.size()
+                    + ", saving " + (count - kept.size()) + " HTTP calls");
+        }
+        return kept.toArray(new APIRequest[kept.size()]);
+    }
+
+    /**
+     * Applies the rules above, without touching the database
+     *
+     * @param list   The requests, in the order they should be sent
+     * @param merged Receives the requests that now carry the merged body of
+     *               several additions, and have to be saved again
+     * @return For each request, whether it should be dropped
+     */
+    static boolean[] redundant(List<APIRequest> list, List<APIRequest> merged) {
+        int count = list.size();
+        boolean[] drop = new boolean[count];
+
+        // Repeated GETs; the first one is kept, unless a later one reports to
+        // a handler and the first doesn't
+        HashMap<String, Integer> gets = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            APIRequest r = list.get(i);
+            if (!"get".equalsIgnoreCase(r.method)) continue;
+            String resource = resource(r);
+            Integer first = gets.get(resource);
+            if (first == null) {
+                gets.put(resource, i);
+            } else if (r.hasHandler() && !list.get(first).hasHandler()) {
+                drop[first] = true;
+                gets.put(resource, i);
+            } else {
+                drop[i] = true;
+            }
+        }
+
+        // Superseded updates and creations; the last one has the latest content
+        HashSet<String> written = new HashSet<>();
+        for (int i = count - 1; i >= 0; i--) {
+            String object = writtenObject(list.get(i));
+            if (object != null && !written.add(object)) drop[i] = true;
+        }
+
+        // Anything touching an item before it's deleted
+        HashSet<String> deleted = new HashSet<>();
+        for (int i = count - 1; i >= 0; i--) {
+            APIRequest r = list.get(i);
+            String item = targetItem(r);
+            if (item == null) continue;
+            if (r.type == APIRequest.ITEM_DELETE) {
+                if (!deleted.add(item)) drop[i] = true;
+            } else if (deleted.contains(item)) {
+                drop[i] = true;
+            }
+        }
+
+        // Membership changes that undo each other
+        HashMap<String, Integer> memberships = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            APIRequest r = list.get(i);
+            if (drop[i]) continue;
+            if (r.type != APIRequest.ITEM_MEMBERSHIP_ADD
+                    && r.type != APIRequest.ITEM_MEMBERSHIP_REMOVE) continue;
+            // Additions of several items are left alone
+            String item = targetItem(r);
+            if (item == null) continue;
+
+            String membership = collection(r) + "/" + item;
+            Integer earlier = memberships.get(membership);
+            memberships.put(membership, i);
+            if (earlier == null) continue;
+
+            APIRequest previous = list.get(earlier);
+            if (previous.type == r.type) {
+                drop[i] = true;
+                memberships.put(membership, earlier);
+            } else if (previous.type == APIRequest.ITEM_MEMBERSHIP_ADD) {
+                drop[earlier] = true;
+                drop[i] = true;
+                memberships.remove(membership);
+            } else {
+                drop[earlier] = true;
+            }
+        }
+
+        // Additions to the same collection, merged into the last one
+        LinkedHashMap<String, ArrayList<Integer>> additions = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            APIRequest r = list.get(i);
+            if (drop[i] || r.type != APIRequest.ITEM_MEMBERSHIP_ADD) continue;
+            String collection = collection(r);
+            if (!additions.containsKey(collection))
+                additions.put(collection, new ArrayList<Integer>());
+            additions.get(collection).add(i);
+        }
+        for (ArrayList<Integer> indexes : additions.values()) {
+            if (indexes.size() < 2) continue;
+            StringBuilder body = new StringBuilder();
+            for (int i : indexes) {
+                body.append(list.get(i).body.trim()).append(" ");
+                drop[i] = true;
+            }
+            APIRequest last = list.get(indexes.get(indexes.size() - 1));
+            drop[indexes.get(indexes.size() - 1)] = false;
+            last.body = body.toString();
+            merged.add(last);
+        }
+        return drop;
+    }
+
+    /**
+     * The request's URI without the API key, which may or may not have been
+     * appended yet
+     */
+    private static String resource(APIRequest r) {
+        return r.query.replaceAll("[?&]key=[^&]*", "");
+    }
+
+    /**
+     * The object that an update or creation writes, or null for other requests
+     */
+    private static String writtenObject(APIRequest r) {
+        if (r.type == APIRequest.ITEM_UPDATE || r.type == APIRequest.ITEM_ATTACHMENT_UPDATE)
+            return targetItem(r);
+        // Creations only know the temporary key of the object
+        if (r.updateKey != null && "post".equalsIgnoreCase(r.method))
+            return r.updateType + ":" + r.updateKey;
+        return null;
+    }
+
+    /**
+     * The key of the single item or attachment that the request changes, or
+     * null if there isn't one
+     */
+    private static String targetItem(APIRequest r) {
+        switch (r.type) {
+            case APIRequest.ITEM_UPDATE:
+            case APIRequest.ITEM_ATTACHMENT_UPDATE:
+            case APIRequest.ITEM_DELETE:
+            case APIRequest.ITEM_MEMBERSHIP_REMOVE:
+                return segmentAfter(r.query, "/items/");
+            case APIRequest.ITEM_MEMBERSHIP_ADD:
+                if (r.body == null) return null;
+                String keys = r.body.trim();
+                return keys.isEmpty() || keys.contains(" ") ? null : keys;
+            default:
+                return null;
+        }
+    }
+
+    private static String collection(APIRequest r) {
+        return segmentAfter(r.query, "/collections/");
+    }
+
+    /**
+     * The path segment following the marker in the query, or null
+     */
+    private static String segmentAfter(String query, String marker) {
+        int start = query.indexOf(marker);
+        if (start < 0) return null;
+        start += marker.length();
+        int end = start;
+        while (end < query.length() && query.charAt(end) != '/' && query.charAt(end) != '?')
+            end++;
+        return end > start ? query.substring(start, end) : null;
+    }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * The state of one sync, passed through APIRequest.issue(..) to the parsers:
+ * the follow-up requests found while handling responses, such as feed
+ * continuations, children of items, and the fetches of VersionSync.
+ * <p>
+ * Every ZoteroAPITask has a session of its own, so two syncs never see each
+ * other's requests. Within a session, requests may be issued and parsed on
+ * several threads at once; the session is the only state they share.
+ */
+public final class SyncSession {
+    private final ArrayList<APIRequest> queued = new ArrayList<>();
+
+    private final PooledTransport.TransferStats transfer = new PooledTransport.TransferStats();
+
+    /**
+     * Adds a request to be sent later in this sync
+     */
+    public synchronized void queue(APIRequest request) {
+        queued.add(request);
+    }
+
+    public synchronized void queueAll(Collection<APIRequest> requests) {
+        queued.addAll(requests);
+    }
+
+    /**
+     * @return The requests queued since the last call, in the order they were queued
+     */
+    public synchronized APIRequest[] drain() {
+        APIRequest[] requests = queued.toArray(new APIRequest[queued.size()]);
+        queued.clear();
+        return requests;
+    }
+
+    /**
+     * @return The bytes transferred by the requests of this session
+     */
+    public PooledTransport.TransferStats getTransferStats() {
+        return transfer;
+    }
+
+    /**
+     * @return A new context for one HTTP request of this session, which counts
+     * its transfer in this session's stats. The client writes to the context
+     * while it runs, so it can't be shared between requests.
+     */
+    HttpContext newHttpContext() {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(PooledTransport.TRANSFER_STATS, transfer);
+        return context;
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Sends the HTTP requests of APIRequest.issue(..). The default is a shared
+ * PooledTransport; tests can plug in a stand-in with APIRequest.setTransport(..).
+ * <p>
+ * Implementations must be safe to call from several threads at once. Callers
+ * consume the entity of every response they get, so pooled connections are
+ * released.
+ */
+public interface Transport {
+    /**
+     * @param context A context of the request's own, from SyncSession.newHttpContext()
+     */
+    HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException;
+}
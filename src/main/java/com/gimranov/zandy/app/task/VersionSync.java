@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.gimranov.zandy.app.ServerCredentials;
+import com.gimranov.zandy.app.data.Attachment;
+import com.gimranov.zandy.app.data.Database;
+import com.gimranov.zandy.app.data.Item;
+import com.gimranov.zandy.app.data.SyncState;
+
+/**
+ * Incremental sync of the library's items by library version, for requests
+ * of type APIRequest.ITEMS_VERSIONS.
+ * <p>
+ * We ask for the version of every item, but only if the library has changed
+ * since the version we last synced to; when it hasn't, the server answers 304
+ * and that single request is the whole sync. Otherwise the items newer than
+ * our version are fetched by key, and the items we have that are missing from
+ * the map were deleted on the server, so we delete them here too.
+ */
+final class VersionSync {
+    private static final String TAG = VersionSync.class.getSimpleName();
+
+    /**
+     * The most keys we ask for in one request
+     */
+    private static final int KEYS_PER_REQUEST = 50;
+
+    private VersionSync() {
+    }
+
+    static void issue(APIRequest request, Transport transport, HttpRequestBase get,
+                      Database db, ServerCredentials cred, SyncSession session) throws APIException {
+        int since = SyncState.getLibraryVersion(db);
+        if (since > 0) get.setHeader("If-Modified-Since-Version", Integer.toString(since));
+
+        JSONObject versions;
+        int version;
+        try {
+            HttpResponse hr = transport.execute(get, session.newHttpContext());
+            request.status = hr.getStatusLine().getStatusCode();
+            if (request.status == 304) {
+                Log.i(TAG, "Library unchanged since version " + since);
+                if (hr.getEntity() != null) hr.getEntity().consumeContent();
+                request.getHandler().onComplete(request);
+                return;
+            }
+
+            String body = EntityUtils.toString(hr.getEntity(), "UTF-8");
+            if (request.status >= 400) {
+                request.status = request.getHttpStatus() + APIRequest.REQ_FAILING;
+                request.recordAttempt(db);
+                throw new APIException(APIException.HTTP_ERROR, body, request);
+            }
+            versions = new JSONObject(body);
+            Header header = hr.getFirstHeader("Last-Modified-Version");
+            version = header == null ? 0 : Integer.parseInt(header.getValue());
+        } catch (IOException e) {
+            request.recordAttempt(db);
+            throw new APIException(APIException.HTTP_ERROR,
+                    "An IOException was thrown: " + e.getMessage(), request, e);
+        } catch (JSONException | NumberFormatException e) {
+            throw new APIException(APIException.HTTP_ERROR,
+                    "Unreadable versions response", request, e);
+        }
+
+        apply(versions, since, version, db, cred, session);
+        request.getHandler().onUpdate(request);
+        request.getHandler().onComplete(request);
+    }
+
+    /**
+     * Deletes what the server deleted, queues fetches for what changed, and
+     * records the new library version, all in one transaction. The fetches
+     * are stored as well as queued on the session, so they are retried if this sync fails.
+     */
+    private static void apply(JSONObject versions, int since, int version,
+                              Database db, ServerCredentials cred, SyncSession session) {
+        ArrayList<String> changed = new ArrayList<>();
+        Iterator<String> keys = versions.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (versions.optInt(key) > since) changed.add(key);
+        }
+
+        ArrayList<APIRequest> fetches = new ArrayList<>();
+        int deleted = 0;
+        db.beginTransaction();
+        try {
+            for (String key : syncedKeys("select item_key from items" +
+                    " where dirty = " + APIRequest.API_CLEAN + " and item_key not like 'zandy:%'", db)) {
+                if (versions.has(key)) continue;
+                Item item = Item.load(key, db);
+                if (item == null) continue;
+                item.delete(db, true);
+                deleted++;
+            }
+            for (String key : syncedKeys("select attachment_key from attachments" +
+                    " where dirty = " + APIRequest.API_CLEAN + " and length(attachment_key) <= 10", db)) {
+                if (versions.has(key)) continue;
+                Attachment attachment = Attachment.load(key, db);
+                if (attachment == null) continue;
+                attachment.delete(db, true);
+                deleted++;
+            }
+
+            for (int start = 0; start < changed.size(); start += KEYS_PER_REQUEST) {
+                APIRequest fetch = APIRequest.fetchItems(changed.subList(start,
+                        Math.min(start + KEYS_PER_REQUEST, changed.size())), cred);
+                fetch.status = APIRequest.REQ_NEW;
+                fetch.save(db);
+                fetches.add(fetch);
+            }
+
+            if (version > 0) SyncState.setLibraryVersion(db, version);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        session.queueAll(fetches);
+        Log.i(TAG, "Library version " + since + " => " + version + ": " + changed.size()
+                + " changed items in " + fetches.size() + " requests, " + deleted + " deleted");
+    }
+
+    private static ArrayList<String> syncedKeys(String query, Database db) {
+        ArrayList<String> keys = new ArrayList<>();
+        Cursor cur = db.rawQuery(query, new String[]{});
+        if (cur == null) return keys;
+        do {
+            keys.add(cur.getString(0));
+        } while (cur.moveToNext());
+        cur.close();
+        return keys;
+    }
+}
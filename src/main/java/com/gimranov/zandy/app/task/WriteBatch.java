@@ -0,0 +1,373 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import com.gimranov.zandy.app.data.Attachment;
+import com.gimranov.zandy.app.data.ChangeJournal;
+import com.gimranov.zandy.app.data.Database;
+import com.gimranov.zandy.app.data.Item;
+import com.gimranov.zandy.app.data.SyncState;
+
+/**
+ * The objects of one multi-object write request (APIRequest.ITEMS_WRITE),
+ * read from the database when the request is issued.
+ * <p>
+ * The server answers with the outcome for each object, by its position in the
+ * request body:
+ * {"success": {"0": "ABCD2345"}, "unchanged": {"1": "EFGH6789"},
+ * "failed": {"2": {"key": "IJKL0123", "code": 412, "message": "..."}}}
+ * Written objects are marked clean, taking the server's key if they were new.
+ * Failed ones stay dirty and go back into the change journal for the next sync.
+ * <p>
+ * Objects that exist on the server are never written unconditionally: each
+ * carries its own version as itemVersion, or, for objects synced before we
+ * kept versions, the batch is sent with If-Unmodified-Since-Version.
+ */
+final class WriteBatch {
+    private static final String TAG = WriteBatch.class.getSimpleName();
+
+    /**
+     * The most objects the API accepts in one write
+     */
+    static final int MAX_OBJECTS = 50;
+
+    private static final String ITEM = "item:";
+    private static final String ATTACHMENT = "attachment:";
+
+    /**
+     * Items and attachments, in the order they appear in the body
+     */
+    private final ArrayList<Object> objects = new ArrayList<>();
+
+    /**
+     * The library version to send as If-Unmodified-Since-Version, or 0 if
+     * every object carries its own version
+     */
+    private int libraryVersion;
+
+    private WriteBatch() {
+    }
+
+    /**
+     * What the server did with one object of the batch
+     */
+    static final class Result {
+        /**
+         * The object's position in the request body
+         */
+        final int index;
+
+        /**
+         * True for objects written or found unchanged, false for failed ones
+         */
+        final boolean written;
+
+        /**
+         * The server's key for a written object
+         */
+        final String key;
+
+        /**
+         * The version a written object now has, or 0 if it didn't change
+         */
+        final int version;
+
+        /**
+         * The HTTP status and message for a failed object
+         */
+        final int code;
+        final String message;
+
+        Result(int index, boolean written, String key, int version, int code, String message) {
+            this.index = index;
+            this.written = written;
+            this.key = key;
+            this.version = version;
+            this.code = code;
+            this.message = message;
+        }
+    }
+
+    static String token(Item item) {
+        return ITEM + item.getKey();
+    }
+
+    static String token(Attachment attachment) {
+        return ATTACHMENT + attachment.key;
+    }
+
+    /**
+     * Loads the listed objects that still need writing. Attachments whose
+     * parent hasn't been created on the server yet are put back in the journal.
+     *
+     * @param tokens Space-separated tokens from token(..)
+     */
+    static WriteBatch load(String tokens, Database db) {
+        WriteBatch batch = new WriteBatch();
+        if (tokens == null) return batch;
+        for (String token : tokens.split(" ")) {
+            if (token.startsWith(ITEM)) {
+                Item item = Item.load(token.substring(ITEM.length()), db);
+                if (item != null && item.dirty != APIRequest.API_CLEAN)
+                    batch.objects.add(item);
+            } else if (token.startsWith(ATTACHMENT)) {
+                Attachment attachment = Attachment.load(token.substring(ATTACHMENT.length()), db);
+                if (attachment == null || attachment.dirty == APIRequest.API_CLEAN) continue;
+                if (isNew(attachment.parentKey)) {
+                    Log.d(TAG, "Parent of " + attachment.key + " isn't on the server yet");
+                    ChangeJournal.record(db, ChangeJournal.OBJECT_ATTACHMENT, attachment.key,
+                            ChangeJournal.ACTION_UPDATE, null, null);
+                    continue;
+                }
+                batch.objects.add(attachment);
+            }
+        }
+        batch.requireVersions(db);
+        return batch;
+    }
+
+    /**
+     * Gives every object that exists on the server a precondition: its own
+     * version, or else the library version of our last sync. Objects with
+     * neither go back into the journal until a sync has stored the library
+     * version.
+     */
+    private void requireVersions(Database db) {
+        int library = -1;
+        Iterator<Object> it = objects.iterator();
+        while (it.hasNext()) {
+            Object o = it.next();
+            if (isNew(keyOf(o)) || versionOf(o) > 0) continue;
+            if (library < 0) library = SyncState.getLibraryVersion(db);
+            if (library > 0) {
+                libraryVersion = library;
+            } else {
+                Log.d(TAG, "No version to write " + keyOf(o) + " against yet");
+                requeue(o, db);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The version for If-Unmodified-Since-Version, or 0 if the request
+     * doesn't need one
+     */
+    int getLibraryVersion() {
+        return libraryVersion;
+    }
+
+    boolean isEmpty() {
+        return objects.isEmpty();
+    }
+
+    /**
+     * The request body, with each object's content JSON plus the keys that
+     * tie it to the server's copy
+     */
+    String body() {
+        JSONArray array = new JSONArray();
+        try {
+            for (Object o : objects) {
+                JSONObject json;
+                if (o instanceof Item) {
+                    json = new JSONObject(((Item) o).getContent().toString());
+                } else {
+                    Attachment attachment = (Attachment) o;
+                    json = new JSONObject(attachment.content.toString());
+                    json.put("parentItem", attachment.parentKey);
+                }
+                String key = keyOf(o);
+                if (!isNew(key)) {
+                    json.put("itemKey", key);
+                    if (versionOf(o) > 0) json.put("itemVersion", versionOf(o));
+                }
+                array.put(json);
+            }
+            return new JSONObject().put("items", array).toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building body for write batch", e);
+            return null;
+        }
+    }
+
+    /**
+     * Applies the per-object results to the local rows, in one transaction
+     *
+     * @param version The Last-Modified-Version of the response, which written
+     *                objects now have, or 0 if it wasn't sent
+     */
+    void apply(String response, int version, APIRequest request, Database db) throws APIException {
+        ArrayList<Result> results;
+        try {
+            results = results(response, version, objects.size());
+        } catch (JSONException e) {
+            throw new APIException(APIException.HTTP_ERROR,
+                    "Unreadable write response: " + response, request, e);
+        }
+
+        int written = 0;
+        int failed = 0;
+        db.beginTransaction();
+        try {
+            for (Result result : results) {
+                Object o = objects.get(result.index);
+                if (result.written) {
+                    markWritten(o, result.key, result.version, db);
+                    written++;
+                } else {
+                    Log.e(TAG, "Failed to write " + o + ": " + result.code + " " + result.message);
+                    if (result.code == APIRequest.HTTP_ERROR_CONFLICT)
+                        request.getHandler().onError(request, APIRequest.HTTP_ERROR_CONFLICT);
+                    requeue(o, db);
+                    failed++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "Wrote " + written + " of " + objects.size() + " objects, " + failed + " failed");
+    }
+
+    /**
+     * Reads the outcome of each object from a write response
+     *
+     * @param version The Last-Modified-Version of the response, or 0
+     * @param size    The number of objects in the batch; entries for positions
+     *                outside it are skipped
+     */
+    static ArrayList<Result> results(String response, int version, int size) throws JSONException {
+        JSONObject results = new JSONObject(response);
+        ArrayList<Result> list = new ArrayList<>();
+
+        for (String outcome : new String[]{"success", "unchanged"}) {
+            JSONObject map = results.optJSONObject(outcome);
+            if (map == null) continue;
+            Iterator<String> indexes = map.keys();
+            while (indexes.hasNext()) {
+                String index = indexes.next();
+                int i = position(index, size);
+                if (i < 0) continue;
+                list.add(new Result(i, true, map.optString(index),
+                        "success".equals(outcome) ? version : 0, 0, null));
+            }
+        }
+
+        JSONObject map = results.optJSONObject("failed");
+        if (map != null) {
+            Iterator<String> indexes = map.keys();
+            while (indexes.hasNext()) {
+                String index = indexes.next();
+                int i = position(index, size);
+                if (i < 0) continue;
+                JSONObject failure = map.optJSONObject(index);
+                list.add(new Result(i, false, null, 0,
+                        failure == null ? 0 : failure.optInt("code"),
+                        failure == null ? "" : failure.optString("message")));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return The position named by an index of the response, or -1
+     */
+    private static int position(String index, int size) {
+        try {
+            int i = Integer.parseInt(index);
+            if (i >= 0 && i < size) return i;
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        Log.e(TAG, "Write response refers to unknown object: " + index);
+        return -1;
+    }
+
+    /**
+     * @return The key an object has once written: the server's, if ours was
+     * a temporary one
+     */
+    static String keyAfterWrite(String key, String written) {
+        if (isNew(key) && written != null && !"".equals(written)) return written;
+        return key;
+    }
+
+    private static void markWritten(Object o, String written, int version, Database db) {
+        if (o instanceof Item) {
+            Item item = (Item) o;
+            String key = keyAfterWrite(item.getKey(), written);
+            if (!key.equals(item.getKey())) {
+                Log.d(TAG, "Replacing temporary item key: " + item.getKey() + " => " + key);
+                // Children have to follow before the key changes
+                for (Attachment a : Attachment.forItem(item, db)) {
+                    a.parentKey = key;
+                    a.save(db);
+                }
+                item.setKey(key);
+            }
+            if (version > 0) item.setVersion(version);
+            item.dirty = APIRequest.API_CLEAN;
+            item.save(db);
+        } else {
+            Attachment attachment = (Attachment) o;
+            String key = keyAfterWrite(attachment.key, written);
+            if (!key.equals(attachment.key)) {
+                Log.d(TAG, "Replacing temporary attachment key: " + attachment.key + " => " + key);
+                attachment.key = key;
+            }
+            if (version > 0) attachment.version = version;
+            attachment.dirty = APIRequest.API_CLEAN;
+            attachment.save(db);
+        }
+    }
+
+    private static void requeue(Object o, Database db) {
+        if (o instanceof Item) {
+            ChangeJournal.record(db, ChangeJournal.OBJECT_ITEM, ((Item) o).getKey(),
+                    ChangeJournal.ACTION_UPDATE, null, null);
+        } else {
+            ChangeJournal.record(db, ChangeJournal.OBJECT_ATTACHMENT, ((Attachment) o).key,
+                    ChangeJournal.ACTION_UPDATE, null, null);
+        }
+    }
+
+    private static String keyOf(Object o) {
+        return o instanceof Item ? ((Item) o).getKey() : ((Attachment) o).key;
+    }
+
+    private static int versionOf(Object o) {
+        return o instanceof Item ? ((Item) o).getVersion() : ((Attachment) o).version;
+    }
+
+    /**
+     * Whether the key is one of our temporary ones; see Item(Context, String)
+     * and Attachment(String, String)
+     */
+    private static boolean isNew(String key) {
+        return key == null || key.startsWith("zandy:") || key.length() > 10;
+    }
+}
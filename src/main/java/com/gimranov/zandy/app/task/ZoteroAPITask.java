@@ -21,22 +21,36 @@
 
 package com.gimranov.zandy.app.task;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
 import com.gimranov.zandy.app.ServerCredentials;
-import com.gimranov.zandy.app.XMLResponseParser;
-import com.gimranov.zandy.app.data.Attachment;
 import com.gimranov.zandy.app.data.Database;
-import com.gimranov.zandy.app.data.Item;
 
 /**
- * Executes one or more API requests asynchronously.
+ * Executes one or more API requests on background threads, followed by the
+ * requests they queue (continuations and children) and then the local changes.
+ * <p>
+ * Requests are taken from a work queue in order, without recursion. GETs don't
+ * depend on each other, so up to getReaders() of them run at once on a pool;
+ * any other request waits for the GETs before it and then runs alone, so
+ * writes are sent one at a time and in order. Memory is bounded by the number
+ * of requests in flight, and by MAX_PENDING for the queue itself.
+ * <p>
+ * When everything has been sent, or a request has failed, the handler gets a
+ * single message: UPDATED_DATA with the number of requests sent, or
+ * ERROR_UNKNOWN plus the HTTP status. A cancelled task sends nothing.
  * <p>
  * Steps in migration:
  * 1. Move the logic on what kind of request is handled how into the APIRequest itself
@@ -46,31 +60,46 @@ import com.gimranov.zandy.app.data.Item;
  *
  * @author ajlyon
  */
-public class ZoteroAPITask extends AsyncTask<APIRequest, Message, Message> {
+public class ZoteroAPITask {
     private static final String TAG = ZoteroAPITask.class.getSimpleName();
 
-    public ArrayList<APIRequest> deletions;
-    public ArrayList<APIRequest> queue;
+    /**
+     * Default number of GETs sent at once
+     */
+    public static final int DEFAULT_READERS = 3;
+
+    /**
+     * The most requests kept waiting in memory; further follow-up requests
+     * are stored in the database and go out with the local changes
+     */
+    private static final int MAX_PENDING = 500;
 
     public int syncMode = -1;
 
     public static final int AUTO_SYNC_STALE_COLLECTIONS = 1;
 
-    public boolean autoMode = false;
-
     private Database db;
     private ServerCredentials cred;
 
     private Handler handler;
 
+    /**
+     * Follow-up requests of this task's requests; each task has its own
+     */
+    private final SyncSession session = new SyncSession();
+
+    private int readers = DEFAULT_READERS;
+
+    private ExecutorService pool;
+    private Thread worker;
+    private volatile boolean cancelled = false;
+
     public ZoteroAPITask(Context c) {
-        queue = new ArrayList<APIRequest>();
         cred = new ServerCredentials(c);
         /* TODO reenable in a working way
 		if (settings.getBoolean("sync_aggressively", false))
 			syncMode = AUTO_SYNC_STALE_COLLECTIONS;
 		*/
-        deletions = APIRequest.delete(c);
         db = new Database(c);
     }
 
@@ -78,138 +107,216 @@ public class ZoteroAPITask extends AsyncTask<APIRequest, Message, Message> {
         handler = h;
     }
 
-    private Handler getHandler() {
-        if (handler == null) {
-            handler = new Handler() {
-            };
-        }
-        return handler;
+    /**
+     * Sets how many GETs may be sent at once; call before execute(..)
+     */
+    public void setReaders(int readers) {
+        this.readers = Math.max(1, readers);
     }
 
-    @Override
-    protected Message doInBackground(APIRequest... params) {
-        return doFetch(params);
+    public int getReaders() {
+        return readers;
     }
 
-    @SuppressWarnings("unused")
-    public Message doFetch(APIRequest... reqs) {
-        int count = reqs.length;
-
-        for (int i = 0; i < count; i++) {
-            if (reqs[i] == null) {
-                Log.d(TAG, "Skipping null request");
-                continue;
+    /**
+     * Starts sending the requests on a background thread. A task can only be
+     * executed once.
+     */
+    public void execute(final APIRequest... params) {
+        if (worker != null) throw new IllegalStateException("Task has already been executed");
+        pool = Executors.newFixedThreadPool(readers);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Message result = sync(params);
+                Database.logCacheStats();
+                session.getTransferStats().log();
+                if (result != null && !cancelled && handler != null) handler.sendMessage(result);
             }
+        }, TAG);
+        worker.start();
+    }
 
-            // Just in case we missed something, we fix the user ID right here too,
-            // and we set the key as well.
-            reqs[i] = cred.prep(reqs[i]);
-
-            try {
-                Log.i(TAG, "Executing API call: " + reqs[i].query);
-                reqs[i].issue(db, cred);
-                Log.i(TAG, "Successfully retrieved API call: " + reqs[i].query);
-                reqs[i].succeeded(db);
-
-            } catch (APIException e) {
-                Log.e(TAG, "Failed to execute API call: " + e.request.query, e);
-                e.request.status = APIRequest.REQ_FAILING + e.request.getHttpStatus();
-                e.request.save(db);
-                Message msg = Message.obtain();
-                msg.arg1 = APIRequest.ERROR_UNKNOWN + e.request.getHttpStatus();
-                return msg;
-            }
+    /**
+     * Stops the task after the requests now in flight; the rest stay in the
+     * database, if they were stored there, for the next sync.
+     */
+    public void cancel() {
+        cancelled = true;
+        if (pool != null) pool.shutdownNow();
+        if (worker != null) worker.interrupt();
+    }
 
-            // The XML parser's queue is simply from following continuations in the paged
-            // feed. We shouldn't split out its requests...
-            if (XMLResponseParser.queue != null && !XMLResponseParser.queue.isEmpty()) {
-                Log.i(TAG, "Finished call, but adding " +
-                        XMLResponseParser.queue.size() +
-                        " items to queue.");
-                queue.addAll(XMLResponseParser.queue);
-                XMLResponseParser.queue.clear();
-            } else {
-                Log.i(TAG, "Finished call, and parser's request queue is empty");
-            }
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sends the requests with everything they queue, then the local changes
+     *
+     * @return The message for the handler, or null if the task was cancelled
+     */
+    private Message sync(APIRequest... reqs) {
+        Message msg;
+        try {
+            int sent = send(reqs);
+
+            Log.d(TAG, "Sending local changes");
+            // The change journal, followed by any requests still failing
+            ArrayList<APIRequest> list = APIRequest.outbox(db);
+            sent += send(list.toArray(new APIRequest[list.size()]));
+
+            msg = Message.obtain();
+            msg.arg1 = APIRequest.UPDATED_DATA;
+            msg.arg2 = sent;
+            return msg;
+        } catch (APIException e) {
+            failed(e);
+            msg = Message.obtain();
+            msg.arg1 = APIRequest.ERROR_UNKNOWN + e.request.getHttpStatus();
+            return msg;
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Sync cancelled");
+            return null;
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        // 
-        if (queue.size() > 0) {
-            // If the last batch saw unchanged items, don't follow the Atom
-            // continuations; just run the child requests
-            // XXX This is disabled for now
-            if (false && !XMLResponseParser.followNext) {
-                ArrayList<APIRequest> toRemove = new ArrayList<APIRequest>();
-                for (APIRequest r : queue) {
-                    if (r.type != APIRequest.ITEMS_CHILDREN) {
-                        Log.d(TAG, "Removing request from queue since last page had old items: " + r.query);
-                        toRemove.add(r);
+    /**
+     * Works through the requests and the ones they queue, until all are sent
+     * or one fails. After a failure the GETs in flight are finished, but
+     * nothing more is started; the requests still waiting, including those
+     * queued by the pages that did parse, are stored for the next sync.
+     *
+     * @return The number of requests sent
+     */
+    private int send(APIRequest[] reqs) throws APIException, InterruptedException {
+        ArrayDeque<APIRequest> pending = new ArrayDeque<>();
+        enqueue(reqs, pending);
+
+        CompletionService<APIRequest> reads = new ExecutorCompletionService<>(pool);
+        int inFlight = 0;
+        int sent = 0;
+        APIException failure = null;
+
+        while (failure == null && (!pending.isEmpty() || inFlight > 0)) {
+            if (cancelled || Thread.interrupted()) throw new InterruptedException();
+
+            APIRequest next = pending.peekFirst();
+            if (next != null && "get".equalsIgnoreCase(next.method) && inFlight < readers) {
+                final APIRequest read = pending.removeFirst();
+                reads.submit(new Callable<APIRequest>() {
+                    @Override
+                    public APIRequest call() throws APIException {
+                        issue(read);
+                        return read;
                     }
+                });
+                inFlight++;
+            } else if (inFlight > 0) {
+                // The pool is busy, or the next request has to wait for the GETs before it
+                failure = finish(reads);
+                inFlight--;
+                if (failure == null) sent++;
+                collect(pending);
+            } else {
+                pending.removeFirst();
+                try {
+                    issue(next);
+                    sent++;
+                } catch (APIException e) {
+                    failure = e;
                 }
-                queue.removeAll(toRemove);
+                collect(pending);
             }
-            Log.i(TAG, "Starting queued requests: " + queue.size() + " requests");
-            APIRequest[] templ = {};
-            APIRequest[] requests = queue.toArray(templ);
-            queue.clear();
-            Log.i(TAG, "Queue size now: " + queue.size());
-            // XXX I suspect that this calling of doFetch from doFetch might be the cause of our
-            // out-of-memory situations. We may be able to accomplish the same thing by expecting
-            // the code listening to our handler to fetch again if QUEUED_MORE is received. In that
-            // case, we could just save our queue here and really return.
-
-            // XXX Test: Here, we try to use doInBackground instead
-            doInBackground(requests);
-
-            // Return a message with the number of requests added to the queue
-            Message msg = Message.obtain();
-            msg.arg1 = APIRequest.QUEUED_MORE;
-            msg.arg2 = requests.length;
-            return msg;
         }
 
-
-        // Here's where we tie in to periodic housekeeping syncs
-        // If we're already in auto mode (that is, here), just move on
-        if (autoMode) {
-            Message msg = Message.obtain();
-            msg.arg1 = APIRequest.UPDATED_DATA;
-            return msg;
+        for (; inFlight > 0; inFlight--) {
+            APIException e = finish(reads);
+            if (e != null) failed(e);
         }
-
-        Log.d(TAG, "Sending local changes");
-        Item.queue(db);
-        Attachment.queue(db);
-
-        APIRequest[] templ = {};
-
-        ArrayList<APIRequest> list = new ArrayList<APIRequest>();
-        for (Item i : Item.queue) {
-            list.add(cred.prep(APIRequest.update(i)));
+        if (failure != null) {
+            // Pages that parsed have stored their validators and will come
+            // back as 304 next time, which doesn't queue their follow-ups again
+            collect(pending);
+            store(pending);
+            throw failure;
         }
+        return sent;
+    }
 
-        for (Attachment a : Attachment.queue) {
-            list.add(cred.prep(APIRequest.update(a, db)));
+    /**
+     * Stores the requests in the database, so the next sync sends them
+     */
+    private void store(ArrayDeque<APIRequest> pending) {
+        if (pending.isEmpty()) return;
+        for (APIRequest r : pending) {
+            r.status = APIRequest.REQ_NEW;
+            r.save(db);
         }
+        Log.i(TAG, "Stored " + pending.size() + " unsent requests for the next sync");
+        pending.clear();
+    }
 
-        // This queue has deletions, collection memberships, and failing requests
-        // We may want to filter it in the future
-        list.addAll(APIRequest.queue(db));
+    private void issue(APIRequest r) throws APIException {
+        Log.i(TAG, "Executing API call: " + r.query);
+        r.issue(db, cred, session);
+        Log.i(TAG, "Successfully retrieved API call: " + r.query);
+        r.succeeded(db);
+    }
 
-        // We're in auto mode...
-        autoMode = true;
-        doInBackground(list.toArray(templ));
+    /**
+     * Waits for the next GET to finish
+     *
+     * @return The exception it failed with, or null
+     */
+    private static APIException finish(CompletionService<APIRequest> reads)
+            throws InterruptedException {
+        try {
+            reads.take().get();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof APIException) return (APIException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
 
-        // Return a message noting that we've queued more requests
-        Message msg = Message.obtain();
-        msg.arg1 = APIRequest.QUEUED_MORE;
-        msg.arg2 = list.size();
-        return msg;
+    private void failed(APIException e) {
+        Log.e(TAG, "Failed to execute API call: " + e.request.query, e);
+        e.request.status = APIRequest.REQ_FAILING + e.request.getHttpStatus();
+        e.request.save(db);
     }
 
+    /**
+     * Moves the requests queued while parsing onto the end of the work queue
+     */
+    private void collect(ArrayDeque<APIRequest> pending) {
+        APIRequest[] queued = session.drain();
+        if (queued.length == 0) return;
+        Log.i(TAG, "Finished call, but adding " + queued.length + " items to queue.");
+        enqueue(queued, pending);
+    }
 
-    @Override
-    protected void onPostExecute(Message result) {
-        getHandler().sendMessage(result);
+    private void enqueue(APIRequest[] reqs, ArrayDeque<APIRequest> pending) {
+        // Just in case we missed something, we fix the user ID right here too,
+        // and we set the key as well.
+        for (int i = 0; i < reqs.length; i++) {
+            if (reqs[i] != null) reqs[i] = cred.prep(reqs[i]);
+        }
+
+        int stored = 0;
+        for (APIRequest r : RequestCompactor.compact(reqs, db)) {
+            if (pending.size() < MAX_PENDING) {
+                pending.addLast(r);
+            } else {
+                r.status = APIRequest.REQ_NEW;
+                r.save(db);
+                stored++;
+            }
+        }
+        if (stored > 0) Log.i(TAG, "Work queue is full; stored " + stored + " requests for later");
     }
 }
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One test per rule of RequestCompactor, on the requests the way
+ * APIRequest builds them
+ */
+public class RequestCompactorTest {
+    private static final String BASE = "https://api.zotero.org/users/5770";
+
+    private final ArrayList<APIRequest> merged = new ArrayList<>();
+
+    @Test
+    public void repeatedGetsAreSentOnce() {
+        APIRequest first = get("/items?content=json&key=SECRET");
+        APIRequest again = get("/items?content=json");
+
+        assertEquals(Arrays.asList(first), kept(first, again));
+    }
+
+    @Test
+    public void laterGetWithHandlerReplacesFirst() {
+        APIRequest first = get("/collections");
+        APIRequest watched = get("/collections");
+        watched.setHandler(new APIEvent() {
+            @Override
+            public void onComplete(APIRequest request) {
+            }
+
+            @Override
+            public void onUpdate(APIRequest request) {
+            }
+
+            @Override
+            public void onError(APIRequest request, Exception exception) {
+            }
+
+            @Override
+            public void onError(APIRequest request, int error) {
+            }
+        });
+
+        assertEquals(Arrays.asList(watched), kept(first, watched));
+    }
+
+    @Test
+    public void onlyLastUpdateOfAnObjectIsSent() {
+        APIRequest first = update("ABCD2345");
+        APIRequest other = update("EFGH6789");
+        APIRequest last = update("ABCD2345");
+
+        assertEquals(Arrays.asList(other, last), kept(first, other, last));
+    }
+
+    @Test
+    public void onlyLastCreationOfAnObjectIsSent() {
+        APIRequest first = create("zandy:1");
+        APIRequest other = create("zandy:2");
+        APIRequest last = create("zandy:1");
+
+        assertEquals(Arrays.asList(other, last), kept(first, other, last));
+    }
+
+    @Test
+    public void changesBeforeDeletionAreDropped() {
+        APIRequest edit = update("ABCD2345");
+        APIRequest added = add("QRST9876", "ABCD2345");
+        APIRequest removed = remove("UVWX5432", "ABCD2345");
+        APIRequest unrelated = update("EFGH6789");
+        APIRequest first = delete("ABCD2345");
+        APIRequest second = delete("ABCD2345");
+
+        assertEquals(Arrays.asList(unrelated, second),
+                kept(edit, added, removed, unrelated, first, second));
+    }
+
+    @Test
+    public void addedAndRemovedMembershipCancelsOut() {
+        APIRequest added = add("QRST9876", "ABCD2345");
+        APIRequest removed = remove("QRST9876", "ABCD2345");
+
+        assertEquals(0, kept(added, removed).size());
+    }
+
+    @Test
+    public void removedAndAddedMembershipOnlyNeedsTheAddition() {
+        APIRequest removed = remove("QRST9876", "ABCD2345");
+        APIRequest added = add("QRST9876", "ABCD2345");
+
+        assertEquals(Arrays.asList(added), kept(removed, added));
+    }
+
+    @Test
+    public void repeatedMembershipChangeIsSentOnce() {
+        APIRequest first = add("QRST9876", "ABCD2345");
+        APIRequest again = add("QRST9876", "ABCD2345");
+
+        assertEquals(Arrays.asList(first), kept(first, again));
+        assertEquals(0, merged.size());
+    }
+
+    @Test
+    public void membershipsOfOtherCollectionsAreIndependent() {
+        APIRequest added = add("QRST9876", "ABCD2345");
+        APIRequest removed = remove("UVWX5432", "ABCD2345");
+
+        assertEquals(Arrays.asList(added, removed), kept(added, removed));
+    }
+
+    @Test
+    public void additionsOfSeveralItemsAreNotCancelled() {
+        APIRequest added = add("QRST9876", "ABCD2345", "EFGH6789");
+        APIRequest removed = remove("QRST9876", "ABCD2345");
+
+        assertEquals(Arrays.asList(added, removed), kept(added, removed));
+    }
+
+    @Test
+    public void additionsToOneCollectionAreMergedIntoTheLast() {
+        APIRequest first = add("QRST9876", "ABCD2345");
+        APIRequest read = get("/collections");
+        APIRequest elsewhere = add("UVWX5432", "IJKL0123");
+        APIRequest last = add("QRST9876", "EFGH6789");
+
+        List<APIRequest> kept = kept(first, read, elsewhere, last);
+
+        assertEquals(Arrays.asList(read, elsewhere, last), kept);
+        assertEquals("ABCD2345 EFGH6789 ", last.body);
+        assertEquals(1, merged.size());
+        assertSame(last, merged.get(0));
+        assertEquals("IJKL0123 ", elsewhere.body);
+    }
+
+    @Test
+    public void nothingToCompact() {
+        APIRequest read = get("/items");
+        APIRequest edit = update("ABCD2345");
+        APIRequest deletion = delete("EFGH6789");
+
+        assertEquals(Arrays.asList(read, edit, deletion), kept(read, edit, deletion));
+        assertTrue(merged.isEmpty());
+    }
+
+    /**
+     * @return The requests that RequestCompactor keeps, in order
+     */
+    private List<APIRequest> kept(APIRequest... requests) {
+        List<APIRequest> list = Arrays.asList(requests);
+        boolean[] drop = RequestCompactor.redundant(list, merged);
+        ArrayList<APIRequest> kept = new ArrayList<>();
+        for (int i = 0; i < drop.length; i++) {
+            if (!drop[i]) kept.add(list.get(i));
+        }
+        return kept;
+    }
+
+    private static APIRequest get(String path) {
+        return new APIRequest(BASE + path, "get", null);
+    }
+
+    private static APIRequest update(String item) {
+        APIRequest r = new APIRequest(BASE + "/items/" + item, "PUT", null);
+        r.type = APIRequest.ITEM_UPDATE;
+        return r;
+    }
+
+    private static APIRequest create(String temporaryKey) {
+        APIRequest r = new APIRequest(BASE + "/items", "POST", null);
+        r.updateKey = temporaryKey;
+        r.updateType = "item";
+        return r;
+    }
+
+    private static APIRequest delete(String item) {
+        APIRequest r = new APIRequest(BASE + "/items/" + item, "DELETE", null);
+        r.type = APIRequest.ITEM_DELETE;
+        return r;
+    }
+
+    private static APIRequest add(String collection, String... items) {
+        APIRequest r = new APIRequest(BASE + "/collections/" + collection + "/items", "POST", null);
+        StringBuilder body = new StringBuilder();
+        for (String item : items) {
+            body.append(item).append(" ");
+        }
+        r.body = body.toString();
+        r.type = APIRequest.ITEM_MEMBERSHIP_ADD;
+        return r;
+    }
+
+    private static APIRequest remove(String collection, String item) {
+        APIRequest r = new APIRequest(BASE + "/collections/" + collection + "/items/" + item,
+                "DELETE", null);
+        r.type = APIRequest.ITEM_MEMBERSHIP_REMOVE;
+        return r;
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of Zandy.
+ *
+ * Zandy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Zandy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with Zandy.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package com.gimranov.zandy.app.task;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how WriteBatch reads the outcome of each object from a write
+ * response, and which keys it takes from the server
+ */
+public class WriteBatchTest {
+
+    @Test
+    public void successfulObjectsTakeTheNewVersion() throws JSONException {
+        List<WriteBatch.Result> results = WriteBatch.results(
+                "{\"success\":{\"0\":\"ABCD2345\",\"2\":\"EFGH6789\"}}", 42, 3);
+
+        assertEquals(2, results.size());
+        assertWritten(at(results, 0), "ABCD2345", 42);
+        assertWritten(at(results, 2), "EFGH6789", 42);
+        assertNull(at(results, 1));
+    }
+
+    @Test
+    public void unchangedObjectsKeepTheirVersion() throws JSONException {
+        List<WriteBatch.Result> results = WriteBatch.results(
+                "{\"unchanged\":{\"1\":\"ABCD2345\"}}", 42, 2);
+
+        assertEquals(1, results.size());
+        assertWritten(at(results, 1), "ABCD2345", 0);
+    }
+
+    @Test
+    public void failedObjectsCarryCodeAndMessage() throws JSONException {
+        List<WriteBatch.Result> results = WriteBatch.results(
+                "{\"failed\":{\"0\":{\"key\":\"ABCD2345\",\"code\":412,"
+                        + "\"message\":\"Item has been modified\"}}}", 42, 1);
+
+        assertEquals(1, results.size());
+        WriteBatch.Result failed = at(results, 0);
+        assertFalse(failed.written);
+        assertEquals(APIRequest.HTTP_ERROR_CONFLICT, failed.code);
+        assertEquals("Item has been modified", failed.message);
+    }
+
+    @Test
+    public void outcomesAreMappedByIndex() throws JSONException {
+        List<WriteBatch.Result> results = WriteBatch.results(
+                "{\"success\":{\"2\":\"IJKL0123\"},"
+                        + "\"unchanged\":{\"0\":\"ABCD2345\"},"
+                        + "\"failed\":{\"1\":{\"code\":400,\"message\":\"Invalid\"}}}", 7, 3);
+
+        assertEquals(3, results.size());
+        assertWritten(at(results, 0), "ABCD2345", 0);
+        assertFalse(at(results, 1).written);
+        assertEquals(400, at(results, 1).code);
+        assertWritten(at(results, 2), "IJKL0123", 7);
+    }
+
+    @Test
+    public void unknownIndexesAreSkipped() throws JSONException {
+        List<WriteBatch.Result> results = WriteBatch.results(
+                "{\"success\":{\"2\":\"ABCD2345\",\"-1\":\"EFGH6789\",\"first\":\"IJKL0123\"},"
+                        + "\"failed\":{\"5\":{\"code\":412}}}", 42, 2);
+
+        assertTrue(results.isEmpty());
+    }
+
+    @Test(expected = JSONException.class)
+    public void unreadableResponseIsRejected() throws JSONException {
+        WriteBatch.results("<html>Bad gateway</html>", 0, 1);
+    }
+
+    @Test
+    public void temporaryKeysAreReplaced() {
+        assertEquals("ABCD2345", WriteBatch.keyAfterWrite("zandy:5ea1-77", "ABCD2345"));
+        assertEquals("ABCD2345",
+                WriteBatch.keyAfterWrite("0b2e6a70-2c24-4d5b-9b1f-4a0b1a7d3e11", "ABCD2345"));
+        assertEquals("ABCD2345", WriteBatch.keyAfterWrite(null, "ABCD2345"));
+    }
+
+    @Test
+    public void serverKeysAreKept() {
+        assertEquals("EFGH6789", WriteBatch.keyAfterWrite("EFGH6789", "ABCD2345"));
+        assertEquals("zandy:5ea1-77", WriteBatch.keyAfterWrite("zandy:5ea1-77", ""));
+        assertEquals("zandy:5ea1-77", WriteBatch.keyAfterWrite("zandy:5ea1-77", null));
+    }
+
+    private static void assertWritten(WriteBatch.Result result, String key, int version) {
+        assertTrue(result.written);
+        assertEquals(key, result.key);
+        assertEquals(version, result.version);
+    }
+
+    /**
+     * @return The result for an index, or null
+     */
+    private static WriteBatch.Result at(List<WriteBatch.Result> results, int index) {
+        for (WriteBatch.Result r : results) {
+            if (r.index == index) return r;
+        }
+        return null;
+    }
+}